@@ -0,0 +1,152 @@
+package io.github.manjago.javastone.bench;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.model.EmbeddingLayer;
+import io.github.manjago.javastone.model.GatedFeedForward;
+import io.github.manjago.javastone.model.GemmaModel;
+import io.github.manjago.javastone.model.LayerNorm;
+import io.github.manjago.javastone.model.LinearLayer;
+import io.github.manjago.javastone.model.MultiHeadAttention;
+import io.github.manjago.javastone.model.QuantizedLinearLayer;
+import io.github.manjago.javastone.model.RMSNorm;
+import io.github.manjago.javastone.model.RotaryEmbedding;
+import io.github.manjago.javastone.model.TransformerBlock;
+import io.github.manjago.javastone.util.GemmaConfig;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Сборка слоев и моделей со случайными весами по GemmaConfig для бенчмарков.
+ */
+final class BenchModels {
+
+    // Контекст с запасом: самый длинный промпт бенчмарков (8192) плюс сгенерированные токены
+    static final int MAX_POSITIONS = 16384;
+
+    /**
+     * Размер группы квантования, как по умолчанию у ModelQuantizer.
+     */
+    static final int GROUP_SIZE = 128;
+
+    private BenchModels() {
+    }
+
+    static GemmaConfig config(int hiddenSize, int numHeads, int numKvHeads, int numLayers, int vocabSize) {
+        return new GemmaConfig(hiddenSize, numHeads, numLayers, hiddenSize * 4, vocabSize, 1e-6f,
+                hiddenSize / numHeads, numKvHeads, GemmaConfig.DEFAULT_ROPE_THETA, MAX_POSITIONS);
+    }
+
+    static NDArray weight(NDManager manager, long... shape) {
+        return manager.randomNormal(0f, 0.02f, new Shape(shape), DataType.FLOAT32);
+    }
+
+    /**
+     * Веса, хранящиеся в type (FLOAT32, BFLOAT16 или FLOAT16).
+     */
+    static NDArray weight(NDManager manager, DataType type, long... shape) {
+        NDArray weight = weight(manager, shape);
+        if (type == DataType.FLOAT32) {
+            return weight;
+        }
+        NDArray converted = weight.toType(type, false);
+        weight.close();
+        return converted;
+    }
+
+    /**
+     * Значение параметра бенчмарка bits: none, 8 или 4.
+     * @return 0 для весов без квантования.
+     */
+    static int bits(String bits) {
+        return "none".equals(bits) ? 0 : Integer.parseInt(bits);
+    }
+
+    static LinearLayer linear(NDManager manager, long outputFeatures, long inputFeatures) {
+        return new LinearLayer(weight(manager, outputFeatures, inputFeatures), null);
+    }
+
+    /**
+     * Линейный слой, квантованный в bits бит по группам {@link #GROUP_SIZE}; при bits = 0 — FLOAT32.
+     */
+    static LinearLayer linear(NDManager manager, int bits, long outputFeatures, long inputFeatures) {
+        if (bits == 0) {
+            return linear(manager, outputFeatures, inputFeatures);
+        }
+        try (NDArray weight = weight(manager, outputFeatures, inputFeatures)) {
+            return QuantizedLinearLayer.quantize(weight, null, bits, GROUP_SIZE);
+        }
+    }
+
+    static RMSNorm norm(NDManager manager, GemmaConfig config) {
+        return new RMSNorm(weight(manager, config.hiddenSize()), config.rmsNormEps());
+    }
+
+    static LayerNorm layerNorm(NDManager manager, GemmaConfig config) {
+        Shape shape = new Shape(config.hiddenSize());
+        return new LayerNorm(manager.ones(shape), manager.zeros(shape), config.rmsNormEps());
+    }
+
+    static RotaryEmbedding rope(NDManager manager, GemmaConfig config) {
+        return new RotaryEmbedding(manager, config.headDim(), config.maxPositionEmbeddings(), config.ropeTheta());
+    }
+
+    static MultiHeadAttention attention(NDManager manager, GemmaConfig config) {
+        return attention(manager, config, rope(manager, config));
+    }
+
+    static MultiHeadAttention attention(NDManager manager, GemmaConfig config, RotaryEmbedding rope) {
+        return attention(manager, config, rope, 0);
+    }
+
+    /**
+     * Внимание с объединенной проекцией q/k/v; при bits > 0 проекции квантованы.
+     */
+    static MultiHeadAttention attention(NDManager manager, GemmaConfig config, RotaryEmbedding rope, int bits) {
+        int hidden = config.hiddenSize();
+        int queryDim = config.numAttentionHeads() * config.headDim();
+        int kvDim = config.numKeyValueHeads() * config.headDim();
+        return new MultiHeadAttention(config.numAttentionHeads(), config.numKeyValueHeads(), config.headDim(), rope,
+                linear(manager, bits, queryDim + 2L * kvDim, hidden), linear(manager, bits, hidden, queryDim));
+    }
+
+    static TransformerBlock block(NDManager manager, GemmaConfig config) {
+        return block(manager, config, rope(manager, config));
+    }
+
+    static TransformerBlock block(NDManager manager, GemmaConfig config, RotaryEmbedding rope) {
+        return block(manager, config, rope, 0);
+    }
+
+    static TransformerBlock block(NDManager manager, GemmaConfig config, RotaryEmbedding rope, int bits) {
+        int hidden = config.hiddenSize();
+        int intermediate = config.intermediateSize();
+        return new TransformerBlock(attention(manager, config, rope, bits), norm(manager, config), norm(manager, config),
+                new GatedFeedForward(linear(manager, bits, 2L * intermediate, hidden),
+                        linear(manager, bits, hidden, intermediate)));
+    }
+
+    static GemmaModel model(NDManager manager, GemmaConfig config) {
+        return model(manager, config, 0);
+    }
+
+    /**
+     * Модель, у блоков которой линейные слои квантованы в bits бит (0 — FLOAT32).
+     * LM head связан с эмбеддингами и остается в FLOAT32.
+     */
+    static GemmaModel model(NDManager manager, GemmaConfig config, int bits) {
+        RotaryEmbedding rope = rope(manager, config);
+        List<TransformerBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < config.numHiddenLayers(); i++) {
+            blocks.add(block(manager, config, rope, bits));
+        }
+        EmbeddingLayer embedding = new EmbeddingLayer(weight(manager, config.vocabSize(), config.hiddenSize()));
+        return new GemmaModel(embedding, blocks, norm(manager, config));
+    }
+
+    static NDArray tokens(NDManager manager, long batchSize, long seqLen, int vocabSize) {
+        return manager.randomInteger(0, vocabSize, new Shape(batchSize, seqLen), DataType.INT64);
+    }
+}
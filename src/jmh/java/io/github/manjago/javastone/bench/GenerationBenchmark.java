@@ -0,0 +1,220 @@
+package io.github.manjago.javastone.bench;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import io.github.manjago.javastone.backend.Backends;
+import io.github.manjago.javastone.metrics.Metrics;
+import io.github.manjago.javastone.model.GemmaModel;
+import io.github.manjago.javastone.model.GenerationParams;
+import io.github.manjago.javastone.model.KVCache;
+import io.github.manjago.javastone.model.PrefixCache;
+import io.github.manjago.javastone.model.SpeculativeDecoder;
+import io.github.manjago.javastone.model.TokenStream;
+import io.github.manjago.javastone.util.GemmaConfig;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Сквозные сценарии генерации: prefill промпта и покадровое декодирование через K/V кэш.
+ * decode измеряет {@link #DECODE_TOKENS} шагов после промпта длины promptLen,
+ * результат нормирован на один токен.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class GenerationBenchmark {
+
+    private static final int DECODE_TOKENS = 16;
+    private static final int DRAFT_TOKENS = 4;
+
+    @Param({"djl", "vector"})
+    public String backend;
+
+    @Param({"256", "1024"})
+    public int hiddenSize;
+
+    @Param({"8"})
+    public int numHeads;
+
+    @Param({"8", "1"})
+    public int numKvHeads;
+
+    @Param({"2"})
+    public int numLayers;
+
+    @Param({"32000"})
+    public int vocabSize;
+
+    @Param({"32", "512", "8192"})
+    public int promptLen;
+
+    @Param({"1"})
+    public int batchSize;
+
+    /**
+     * Квантование линейных слоев блоков: none, 8 или 4 бита.
+     */
+    @Param({"none", "8", "4"})
+    public String bits;
+
+    /**
+     * Стоимость инструментирования: запуск с -p metrics=true,false.
+     */
+    @Param({"false"})
+    public boolean metrics;
+
+    private NDManager manager;
+    private GemmaModel model;
+    private GemmaModel draft;
+    private NDArray prompt;
+    private long[] firstPrompt;
+    private NDArray nextToken;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Backends.use(backend);
+        if (metrics) {
+            Metrics.reset();
+        } else {
+            Metrics.disable();
+        }
+        manager = NDManager.newBaseManager();
+        NativeMemoryCounters.track(manager);
+        GemmaConfig config = BenchModels.config(hiddenSize, numHeads, numKvHeads, numLayers, vocabSize);
+        model = BenchModels.model(manager, config, BenchModels.bits(bits));
+        prompt = BenchModels.tokens(manager, batchSize, promptLen, vocabSize);
+        firstPrompt = prompt.get(0).toLongArray();
+        draft = model.truncated(Math.max(1, numLayers / 2));
+        nextToken = BenchModels.tokens(manager, batchSize, 1, vocabSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public void prefill(Blackhole blackhole, NativeMemoryCounters counters) {
+        try (KVCache cache = model.newCache(manager)) {
+            NDArray logits = model.prefill(prompt, cache, GemmaModel.DEFAULT_PREFILL_CHUNK);
+            blackhole.consume(logits.getShape());
+            logits.close();
+        }
+    }
+
+    /**
+     * prefill первой строки промпта, весь префикс которой уже в кэше префиксов.
+     */
+    @Benchmark
+    public void prefillCachedPrefix(SharedPrefix sharedPrefix, Blackhole blackhole, NativeMemoryCounters counters) {
+        try (KVCache cache = model.newCache(manager)) {
+            NDArray logits = model.prefill(manager, sharedPrefix.prompt, cache, sharedPrefix.cache);
+            blackhole.consume(logits.getShape());
+            logits.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DECODE_TOKENS)
+    public void decode(DecodeCache decodeCache, Blackhole blackhole, NativeMemoryCounters counters) {
+        for (int i = 0; i < DECODE_TOKENS; i++) {
+            NDArray logits = model.forwardStep(nextToken, decodeCache.cache);
+            blackhole.consume(logits.getShape());
+            logits.close();
+        }
+    }
+
+    /**
+     * Генерация {@link #DECODE_TOKENS} токенов первой строки промпта, включая prefill.
+     * Базовая линия для {@link #generateSpeculative}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(DECODE_TOKENS)
+    public void generate(Blackhole blackhole, NativeMemoryCounters counters) {
+        try (TokenStream tokens = model.generate(manager, firstPrompt,
+                GenerationParams.greedy(DECODE_TOKENS))) {
+            while (tokens.hasNext()) {
+                blackhole.consume(tokens.nextLong());
+            }
+        }
+    }
+
+    /**
+     * То же со спекулятивным декодированием: черновая модель — первая половина блоков основной.
+     * На случайных весах доля принятых черновиков не характерна для настоящей модели,
+     * замер показывает накладные расходы раунда.
+     */
+    @Benchmark
+    @OperationsPerInvocation(DECODE_TOKENS)
+    public void generateSpeculative(Blackhole blackhole, NativeMemoryCounters counters) {
+        try (SpeculativeDecoder tokens = model.generateSpeculative(manager, firstPrompt,
+                GenerationParams.greedy(DECODE_TOKENS), draft, DRAFT_TOKENS)) {
+            while (tokens.hasNext()) {
+                blackhole.consume(tokens.nextLong());
+            }
+        }
+    }
+
+    /**
+     * Кэш для decode: перед каждым вызовом заново заполняется промптом (вне замера).
+     */
+    @State(Scope.Thread)
+    public static class DecodeCache {
+
+        private KVCache cache;
+
+        @Setup(Level.Invocation)
+        public void prefill(GenerationBenchmark benchmark) {
+            cache = benchmark.model.newCache(benchmark.manager);
+            benchmark.model.prefill(benchmark.prompt, cache, GemmaModel.DEFAULT_PREFILL_CHUNK).close();
+        }
+
+        @TearDown(Level.Invocation)
+        public void release() {
+            cache.close();
+        }
+    }
+
+    /**
+     * Кэш префиксов, заранее заполненный первой строкой промпта.
+     */
+    @State(Scope.Thread)
+    public static class SharedPrefix {
+
+        private static final int BLOCK_SIZE = 16;
+
+        private PrefixCache cache;
+        private long[] prompt;
+
+        @Setup(Level.Trial)
+        public void warmUp(GenerationBenchmark benchmark) {
+            prompt = benchmark.prompt.get(0).toLongArray();
+            cache = benchmark.model.newPrefixCache(benchmark.manager, BLOCK_SIZE, Long.MAX_VALUE);
+            try (KVCache warm = benchmark.model.newCache(benchmark.manager)) {
+                benchmark.model.prefill(benchmark.manager, prompt, warm, cache).close();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void release() {
+            cache.close();
+        }
+    }
+}
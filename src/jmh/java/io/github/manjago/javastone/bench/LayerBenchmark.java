@@ -0,0 +1,140 @@
+package io.github.manjago.javastone.bench;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import io.github.manjago.javastone.backend.Backends;
+import io.github.manjago.javastone.model.EmbeddingLayer;
+import io.github.manjago.javastone.model.LayerNorm;
+import io.github.manjago.javastone.model.LinearLayer;
+import io.github.manjago.javastone.model.MultiHeadAttention;
+import io.github.manjago.javastone.model.RMSNorm;
+import io.github.manjago.javastone.model.TransformerBlock;
+import io.github.manjago.javastone.util.GemmaConfig;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * forward каждого слоя модели на случайных весах.
+ * Скорость аллокаций в куче: запуск с -prof gc; нативная память: {@link NativeMemoryCounters}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class LayerBenchmark {
+
+    @Param({"djl", "vector"})
+    public String backend;
+
+    @Param({"256", "2048"})
+    public int hiddenSize;
+
+    @Param({"8"})
+    public int numHeads;
+
+    @Param({"8", "1"})
+    public int numKvHeads;
+
+    @Param({"1", "128"})
+    public int seqLen;
+
+    @Param({"1", "4"})
+    public int batchSize;
+
+    // Тип хранения весов эмбеддингов и линейного слоя; вычисления всегда в FLOAT32
+    @Param({"FLOAT32", "BFLOAT16"})
+    public String weightType;
+
+    // Квантование весов линейного слоя (weight-only, группы по BenchModels.GROUP_SIZE);
+    // при 8 и 4 weightType не используется
+    @Param({"none", "8", "4"})
+    public String bits;
+
+    private static final int VOCAB_SIZE = 32000;
+
+    private NDManager manager;
+    private NDArray hidden;
+    private NDArray tokens;
+    private EmbeddingLayer embedding;
+    private LinearLayer linear;
+    private LayerNorm layerNorm;
+    private RMSNorm rmsNorm;
+    private MultiHeadAttention attention;
+    private TransformerBlock block;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Backends.use(backend);
+        manager = NDManager.newBaseManager();
+        NativeMemoryCounters.track(manager);
+        GemmaConfig config = BenchModels.config(hiddenSize, numHeads, numKvHeads, 1, VOCAB_SIZE);
+        hidden = BenchModels.weight(manager, batchSize, seqLen, hiddenSize);
+        tokens = BenchModels.tokens(manager, batchSize, seqLen, VOCAB_SIZE);
+        DataType type = DataType.valueOf(weightType);
+        embedding = new EmbeddingLayer(BenchModels.weight(manager, type, VOCAB_SIZE, hiddenSize));
+        int quantization = BenchModels.bits(bits);
+        linear = quantization == 0
+                ? new LinearLayer(BenchModels.weight(manager, type, config.intermediateSize(), hiddenSize), null)
+                : BenchModels.linear(manager, quantization, config.intermediateSize(), hiddenSize);
+        layerNorm = BenchModels.layerNorm(manager, config);
+        rmsNorm = BenchModels.norm(manager, config);
+        attention = BenchModels.attention(manager, config);
+        block = BenchModels.block(manager, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public void embedding(Blackhole blackhole, NativeMemoryCounters counters) {
+        consume(blackhole, embedding.forward(tokens));
+    }
+
+    @Benchmark
+    public void linear(Blackhole blackhole, NativeMemoryCounters counters) {
+        consume(blackhole, linear.forward(hidden));
+    }
+
+    @Benchmark
+    public void layerNorm(Blackhole blackhole, NativeMemoryCounters counters) {
+        consume(blackhole, layerNorm.forward(hidden));
+    }
+
+    @Benchmark
+    public void rmsNorm(Blackhole blackhole, NativeMemoryCounters counters) {
+        consume(blackhole, rmsNorm.forward(hidden));
+    }
+
+    @Benchmark
+    public void attention(Blackhole blackhole, NativeMemoryCounters counters) {
+        consume(blackhole, attention.forward(hidden));
+    }
+
+    @Benchmark
+    public void transformerBlock(Blackhole blackhole, NativeMemoryCounters counters) {
+        consume(blackhole, block.forward(hidden));
+    }
+
+    private static void consume(Blackhole blackhole, NDArray output) {
+        blackhole.consume(output.getShape());
+        output.close();
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.manjago.javastone.bench;
+
+import ai.djl.ndarray.NDManager;
+import io.github.manjago.javastone.model.NativeMemoryStats;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Дополнительные счетчики JMH по нативной памяти (см. {@link NativeMemoryStats}).
+ * Значения снимаются в конце каждой итерации:
+ * <ul>
+ *   <li>freedBytes — объем промежуточных тензоров, освобожденных областями ForwardScope;</li>
+ *   <li>peakScopeBytes — максимум промежуточных тензоров в одной области;</li>
+ *   <li>retainedBytes — сколько удерживает менеджер бенчмарка (веса, кэши и утечки).</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class NativeMemoryCounters {
+
+    private static volatile NDManager tracked;
+
+    public long freedBytes;
+    public long peakScopeBytes;
+    public long retainedBytes;
+
+    /**
+     * Регистрирует менеджер, объем которого попадет в retainedBytes.
+     */
+    static void track(NDManager manager) {
+        tracked = manager;
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        NativeMemoryStats.reset();
+        freedBytes = 0;
+        peakScopeBytes = 0;
+        retainedBytes = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void capture() {
+        NativeMemoryStats.Snapshot snapshot = NativeMemoryStats.snapshot();
+        freedBytes = snapshot.freedBytes();
+        peakScopeBytes = snapshot.peakScopeBytes();
+        NDManager manager = tracked;
+        retainedBytes = manager == null ? 0 : NativeMemoryStats.retainedBytes(manager);
+    }
+}
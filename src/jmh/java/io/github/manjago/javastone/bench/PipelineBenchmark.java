@@ -0,0 +1,117 @@
+package io.github.manjago.javastone.bench;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import io.github.manjago.javastone.backend.Backends;
+import io.github.manjago.javastone.model.GemmaModel;
+import io.github.manjago.javastone.model.KVCache;
+import io.github.manjago.javastone.serving.PipelineExecutor;
+import io.github.manjago.javastone.util.GemmaConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Совокупная пропускная способность prefill для {@link #REQUESTS} параллельных запросов:
+ * последовательный проход на вызывающем потоке против конвейера из numStages стадий.
+ * Результат нормирован на один запрос.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class PipelineBenchmark {
+
+    private static final int REQUESTS = 8;
+
+    @Param({"djl", "vector"})
+    public String backend;
+
+    @Param({"1024"})
+    public int hiddenSize;
+
+    @Param({"8"})
+    public int numLayers;
+
+    @Param({"2", "4"})
+    public int numStages;
+
+    @Param({"2"})
+    public int intraOpThreads;
+
+    @Param({"128"})
+    public int promptLen;
+
+    private NDManager manager;
+    private GemmaModel model;
+    private PipelineExecutor pipeline;
+    private List<NDArray> prompts;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Backends.use(backend);
+        manager = NDManager.newBaseManager();
+        GemmaConfig config = BenchModels.config(hiddenSize, 8, 1, numLayers, 32000);
+        model = BenchModels.model(manager, config);
+        pipeline = new PipelineExecutor(model, manager,
+                PipelineExecutor.evenStages(numLayers, numStages, intraOpThreads));
+        prompts = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            prompts.add(BenchModels.tokens(manager, 1, promptLen, config.vocabSize()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pipeline.close();
+        manager.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void sequential(Blackhole blackhole) {
+        for (NDArray prompt : prompts) {
+            try (KVCache cache = model.newCache(manager)) {
+                NDArray logits = model.forwardLast(prompt, cache);
+                blackhole.consume(logits.getShape());
+                logits.close();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void pipelined(Blackhole blackhole) {
+        List<KVCache> caches = new ArrayList<>(REQUESTS);
+        List<CompletableFuture<NDArray>> results = new ArrayList<>(REQUESTS);
+        for (NDArray prompt : prompts) {
+            KVCache cache = model.newCache(manager);
+            caches.add(cache);
+            results.add(pipeline.forwardLast(prompt, cache));
+        }
+        for (CompletableFuture<NDArray> result : results) {
+            NDArray logits = result.join();
+            blackhole.consume(logits.getShape());
+            logits.close();
+        }
+        caches.forEach(KVCache::close);
+    }
+}
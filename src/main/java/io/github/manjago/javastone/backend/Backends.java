@@ -0,0 +1,55 @@
+package io.github.manjago.javastone.backend;
+
+/**
+ * Выбор вычислительного бэкенда.
+ * По умолчанию берется из системного свойства javastone.backend (djl | vector),
+ * программно переключается через {@link #use}. Переключать бэкенд стоит при старте,
+ * до первых прямых проходов.
+ * <p>
+ * Бэкенду vector нужен модуль jdk.incubator.vector: JVM запускается с
+ * --add-modules jdk.incubator.vector.
+ */
+public final class Backends {
+
+    public static final String PROPERTY = "javastone.backend";
+
+    private static volatile ComputeBackend current = create(System.getProperty(PROPERTY, DjlBackend.NAME));
+
+    // Бэкенд, переопределенный для отдельного потока (например, стадии конвейера со своим пулом)
+    private static final ThreadLocal<ComputeBackend> THREAD_BACKEND = new ThreadLocal<>();
+
+    private Backends() {
+    }
+
+    public static ComputeBackend current() {
+        ComputeBackend local = THREAD_BACKEND.get();
+        return local != null ? local : current;
+    }
+
+    /**
+     * Переопределяет бэкенд только для текущего потока; null возвращает общий.
+     */
+    public static void useInCurrentThread(ComputeBackend backend) {
+        if (backend == null) {
+            THREAD_BACKEND.remove();
+        } else {
+            THREAD_BACKEND.set(backend);
+        }
+    }
+
+    public static void use(ComputeBackend backend) {
+        current = backend;
+    }
+
+    public static void use(String name) {
+        current = create(name);
+    }
+
+    public static ComputeBackend create(String name) {
+        return switch (name) {
+            case DjlBackend.NAME -> new DjlBackend();
+            case VectorBackend.NAME -> new VectorBackend();
+            default -> throw new IllegalArgumentException("Unknown backend: " + name);
+        };
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.manjago.javastone.backend;
+
+import ai.djl.ndarray.NDArray;
+
+/**
+ * Вычислительное ядро, через которое слои модели выполняют свои основные операции.
+ * Реализации выбираются при старте через {@link Backends}.
+ * Все результаты создаются в менеджере входного тензора.
+ */
+public interface ComputeBackend {
+
+    String name();
+
+    /**
+     * Линейная проекция без смещения: input * weightT.
+     * weightT считается неизменяемым весом слоя, реализация вправе кэшировать его представление.
+     * Веса могут храниться в половинной точности (BFLOAT16, FLOAT16): умножение и накопление
+     * все равно выполняются в FLOAT32.
+     * @param input Shape: (..., input_features), FLOAT32
+     * @param weightT Транспонированные веса. Shape: (input_features, output_features)
+     * @return Shape: (..., output_features), FLOAT32
+     */
+    NDArray linear(NDArray input, NDArray weightT);
+
+    /**
+     * Линейная проекция без смещения с весами, квантованными по группам входных признаков:
+     * w = q * scale (формат {@link io.github.manjago.javastone.model.QuantizedLinearLayer}).
+     * qweight и scales неизменяемы, реализация вправе кэшировать их представление.
+     * Полная float-матрица весов не материализуется.
+     * @param input Shape: (..., input_features), FLOAT32
+     * @param qweight int8: INT8, Shape: (output_features, input_features);
+     *                int4: UINT8, два значения со сдвигом +8 в байте, Shape: (output_features, input_features / 2)
+     * @param scales FLOAT32, Shape: (output_features, input_features / groupSize)
+     * @param bits 8 или 4.
+     * @return Shape: (..., output_features), FLOAT32
+     */
+    NDArray quantizedLinear(NDArray input, NDArray qweight, NDArray scales, int bits, int groupSize);
+
+    /**
+     * Softmax по последней оси.
+     */
+    NDArray softmax(NDArray input);
+
+    /**
+     * Layer Normalization по последней оси: (x - mean) / sqrt(var + epsilon) * gamma + beta.
+     */
+    NDArray layerNorm(NDArray input, NDArray gamma, NDArray beta, float epsilon);
+
+    /**
+     * RMS Normalization по последней оси: x / sqrt(mean(x^2) + epsilon) * scale.
+     * Без промежуточных тензоров размера входа: создается только результат.
+     * @param scale Итоговый множитель признаков (для Gemma это 1 + weight). Shape: (features)
+     */
+    NDArray rmsNorm(NDArray input, NDArray scale, float epsilon);
+
+    /**
+     * Rotary position embedding: пары признаков (i, i + head_dim / 2) каждой головы
+     * поворачиваются на угол своей позиции:
+     * x1' = x1 * cos - x2 * sin, x2' = x2 * cos + x1 * sin.
+     * Строки таблиц выбираются по абсолютным позициям, тригонометрия не вычисляется.
+     * @param input Shape: (batch_size, seq_len, num_heads, head_dim)
+     * @param cos Таблица косинусов. Shape: (max_positions, head_dim / 2)
+     * @param sin Таблица синусов. Shape: (max_positions, head_dim / 2)
+     * @param positions seq_len позиций, общих для пакета, или batch_size * seq_len позиций.
+     */
+    NDArray rotary(NDArray input, NDArray cos, NDArray sin, long[] positions);
+
+    /**
+     * Поэлементная GELU в tanh-аппроксимации (gelu_pytorch_tanh у Gemma):
+     * 0.5 * x * (1 + tanh(sqrt(2 / pi) * (x + 0.044715 * x^3))).
+     * Все реализации обязаны считать именно ее, а не точную GELU через erf.
+     */
+    NDArray gelu(NDArray input);
+
+    /**
+     * Гейтированная GELU (GeGLU) за один поэлементный проход: gelu(gate) * up,
+     * где gate и up — первая и вторая половины последней оси, а gelu — та же
+     * tanh-аппроксимация, что в {@link #gelu}.
+     * @param gateUp Результат объединенной проекции gate/up. Shape: (..., 2 * features)
+     * @return Shape: (..., features)
+     */
+    NDArray geglu(NDArray gateUp);
+}
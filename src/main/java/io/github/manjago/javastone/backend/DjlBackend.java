@@ -0,0 +1,167 @@
+package io.github.manjago.javastone.backend;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+
+/**
+ * Бэкенд по умолчанию: все операции выполняет движок DJL (PyTorch).
+ */
+public class DjlBackend implements ComputeBackend {
+
+    public static final String NAME = "djl";
+
+    /**
+     * Сколько выходных признаков весов половинной точности приводится к FLOAT32 за раз.
+     */
+    static final int HALF_PRECISION_BLOCK = 2048;
+
+    /**
+     * Сколько строк квантованных весов деквантуется за раз.
+     */
+    static final long QUANTIZED_ROW_BLOCK = 4096;
+
+    private static final float SQRT_2_OVER_PI = (float) Math.sqrt(2.0 / Math.PI);
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public NDArray linear(NDArray input, NDArray weightT) {
+        if (weightT.getDataType() == DataType.FLOAT32) {
+            return input.matMul(weightT);
+        }
+        // Веса в половинной точности приводятся к FLOAT32 блоками столбцов weightT:
+        // временная копия занимает один блок, а не всю матрицу
+        long outputFeatures = weightT.getShape().get(1);
+        NDList parts = new NDList();
+        for (long start = 0; start < outputFeatures; start += HALF_PRECISION_BLOCK) {
+            long end = Math.min(start + HALF_PRECISION_BLOCK, outputFeatures);
+            try (NDArray block = weightT.get(new NDIndex(":, {}:{}", start, end));
+                 NDArray upcast = block.toType(DataType.FLOAT32, false)) {
+                parts.add(input.matMul(upcast));
+            }
+        }
+        return concatColumns(parts);
+    }
+
+    @Override
+    public NDArray quantizedLinear(NDArray input, NDArray qweight, NDArray scales, int bits, int groupSize) {
+        // У движка нет целочисленного умножения матриц на CPU: веса деквантуются блоками строк,
+        // временная float-копия занимает один блок, а не всю матрицу
+        long outputFeatures = qweight.getShape().get(0);
+        NDList parts = new NDList();
+        for (long start = 0; start < outputFeatures; start += QUANTIZED_ROW_BLOCK) {
+            long end = Math.min(start + QUANTIZED_ROW_BLOCK, outputFeatures);
+            try (NDArray blockT = dequantizeTransposed(qweight, scales, bits, groupSize, start, end)) {
+                parts.add(input.matMul(blockT));
+            }
+        }
+        return concatColumns(parts);
+    }
+
+    /**
+     * Восстанавливает float-веса строк [start, end) и возвращает их транспонированными.
+     * Временные тензоры освобождаются, возвращается только результат.
+     */
+    private static NDArray dequantizeTransposed(NDArray qweight, NDArray scales, int bits, int groupSize,
+                                                long start, long end) {
+        long rows = end - start;
+        long inputFeatures = qweight.getShape().get(1) * (bits == 4 ? 2 : 1);
+        NDIndex rowRange = new NDIndex("{}:{}", start, end);
+        NDManager parent = qweight.getManager();
+        try (NDManager scope = parent.newSubManager()) {
+            NDArray packed = qweight.get(scope, rowRange).toType(DataType.FLOAT32, false);
+            NDArray values;
+            if (bits == 8) {
+                values = packed;
+            } else {
+                NDArray high = packed.div(16).floor();
+                NDArray low = packed.sub(high.mul(16));
+                values = low.stack(high, -1).reshape(rows, inputFeatures).sub(8);
+            }
+            NDArray blockScales = scales.get(scope, rowRange).expandDims(-1);
+            NDArray weight = values.reshape(rows, inputFeatures / groupSize, groupSize)
+                    .mul(blockScales)
+                    .reshape(rows, inputFeatures)
+                    .transpose();
+            weight.attach(parent);
+            return weight;
+        }
+    }
+
+    private static NDArray concatColumns(NDList parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        NDArray output = NDArrays.concat(parts, -1);
+        parts.close();
+        return output;
+    }
+
+    @Override
+    public NDArray softmax(NDArray input) {
+        return input.softmax(-1);
+    }
+
+    @Override
+    public NDArray layerNorm(NDArray input, NDArray gamma, NDArray beta, float epsilon) {
+        // new int[]{-1} означает "последняя ось", keepDims сохраняет размерность для broadcasting
+        NDArray mean = input.mean(new int[]{-1}, true);
+        NDArray variance = input.sub(mean).pow(2).mean(new int[]{-1}, true);
+        NDArray normalized = input.sub(mean).div(variance.add(epsilon).sqrt());
+        return normalized.mul(gamma).add(beta);
+    }
+
+    @Override
+    public NDArray rmsNorm(NDArray input, NDArray scale, float epsilon) {
+        long features = input.getShape().get(input.getShape().dimension() - 1);
+        // L2-норма считается одной редукцией без тензора квадратов: mean(x^2) = norm^2 / n
+        NDArray inverseRms = input.norm(new int[]{-1}, true).square().divi(features).addi(epsilon).pow(-0.5);
+        return input.mul(inverseRms).muli(scale);
+    }
+
+    @Override
+    public NDArray rotary(NDArray input, NDArray cos, NDArray sin, long[] positions) {
+        Shape shape = input.getShape();
+        long seqLen = shape.get(1);
+        long half = shape.get(3) / 2;
+        NDManager manager = input.getManager();
+        NDArray index = manager.create(positions);
+        // Строки таблиц для позиций входа: (1 или batch_size, seq_len, 1, half), broadcasting по головам
+        NDArray c = cos.get(manager, new NDIndex("{}", index)).reshape(positions.length / seqLen, seqLen, 1, half);
+        NDArray s = sin.get(manager, new NDIndex("{}", index)).reshape(positions.length / seqLen, seqLen, 1, half);
+        NDArray x1 = input.get(new NDIndex("..., :{}", half));
+        NDArray x2 = input.get(new NDIndex("..., {}:", half));
+        return NDArrays.concat(new NDList(x1.mul(c).subi(x2.mul(s)), x2.mul(c).addi(x1.mul(s))), -1);
+    }
+
+    @Override
+    public NDArray gelu(NDArray input) {
+        return geluTanh(input);
+    }
+
+    @Override
+    public NDArray geglu(NDArray gateUp) {
+        Shape shape = gateUp.getShape();
+        long features = shape.get(shape.dimension() - 1) / 2;
+        NDArray gate = gateUp.get(new NDIndex("..., :{}", features));
+        NDArray up = gateUp.get(new NDIndex("..., {}:", features));
+        return geluTanh(gate).muli(up);
+    }
+
+    /**
+     * GELU в tanh-аппроксимации (gelu_pytorch_tanh), как в {@link VectorKernels}:
+     * Activation.gelu движка считает точную GELU через erf.
+     */
+    private static NDArray geluTanh(NDArray x) {
+        NDArray inner = x.pow(3).muli(0.044715f).addi(x).muli(SQRT_2_OVER_PI);
+        return inner.tanh().addi(1f).muli(x).muli(0.5f);
+    }
+}
@@ -0,0 +1,188 @@
+package io.github.manjago.javastone.backend;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import java.lang.ref.Cleaner;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Бэкенд на чистой Java: операции считают {@link VectorKernels} (Vector API + ForkJoinPool),
+ * движок DJL используется только как контейнер тензоров.
+ * Веса линейных слоев при первом обращении копируются в кучу в раскладке (output, input)
+ * и дальше переиспользуются, поэтому на каждом шаге через JNI проходят только активации.
+ * Копия живет столько же, сколько тензор весов: когда модель и ее менеджер освобождены
+ * и тензор собран сборщиком мусора, запись удаляется из кэша.
+ * <p>
+ * Размер пула задается системным свойством javastone.vector.threads
+ * (по умолчанию — число доступных процессоров).
+ */
+public class VectorBackend implements ComputeBackend {
+
+    public static final String NAME = "vector";
+    public static final String THREADS_PROPERTY = "javastone.vector.threads";
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final VectorKernels kernels;
+    private final Map<String, float[]> weights = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> quantizedWeights = new ConcurrentHashMap<>();
+
+    public VectorBackend() {
+        this(new ForkJoinPool(Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())));
+    }
+
+    public VectorBackend(ForkJoinPool pool) {
+        this.kernels = new VectorKernels(pool);
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public NDArray linear(NDArray input, NDArray weightT) {
+        Shape weightShape = weightT.getShape();
+        int inner = (int) weightShape.get(0);
+        int cols = (int) weightShape.get(1);
+        float[] w = cached(weights, weightT, parameter -> {
+            // Кэш в куче всегда FLOAT32: веса половинной точности расширяются один раз
+            try (NDArray weight = parameter.transpose(); NDArray full = weight.toType(DataType.FLOAT32, true)) {
+                return toFloats(full);
+            }
+        });
+        float[] a = toFloats(input);
+        int rows = a.length / inner;
+        float[] out = new float[rows * cols];
+        kernels.matMulTransposed(a, w, out, rows, inner, cols);
+        return input.getManager().create(out, replaceLast(input.getShape(), cols));
+    }
+
+    @Override
+    public NDArray quantizedLinear(NDArray input, NDArray qweight, NDArray scales, int bits, int groupSize) {
+        // Квантованные веса копируются в кучу как есть, без расширения до FLOAT32
+        byte[] q = cached(quantizedWeights, qweight, VectorBackend::toBytes);
+        Shape inputShape = input.getShape();
+        int inner = (int) inputShape.get(inputShape.dimension() - 1);
+        int cols = (int) qweight.getShape().get(0);
+        float[] a = toFloats(input);
+        int rows = a.length / inner;
+        float[] out = new float[rows * cols];
+        kernels.quantizedMatMul(a, q, cachedFloats(scales), out, rows, inner, cols, bits, groupSize);
+        return input.getManager().create(out, replaceLast(inputShape, cols));
+    }
+
+    @Override
+    public NDArray softmax(NDArray input) {
+        Shape shape = input.getShape();
+        int cols = (int) shape.get(shape.dimension() - 1);
+        float[] x = toFloats(input);
+        kernels.softmax(x, x.length / cols, cols);
+        return input.getManager().create(x, shape);
+    }
+
+    @Override
+    public NDArray layerNorm(NDArray input, NDArray gamma, NDArray beta, float epsilon) {
+        Shape shape = input.getShape();
+        int cols = (int) shape.get(shape.dimension() - 1);
+        float[] x = toFloats(input);
+        float[] out = new float[x.length];
+        kernels.layerNorm(x, out, x.length / cols, cols, cachedFloats(gamma), cachedFloats(beta), epsilon);
+        return input.getManager().create(out, shape);
+    }
+
+    @Override
+    public NDArray rmsNorm(NDArray input, NDArray scale, float epsilon) {
+        Shape shape = input.getShape();
+        int cols = (int) shape.get(shape.dimension() - 1);
+        float[] x = toFloats(input);
+        kernels.rmsNorm(x, x.length / cols, cols, cachedFloats(scale), epsilon);
+        return input.getManager().create(x, shape);
+    }
+
+    @Override
+    public NDArray rotary(NDArray input, NDArray cos, NDArray sin, long[] positions) {
+        Shape shape = input.getShape();
+        int seqLen = (int) shape.get(1);
+        int numHeads = (int) shape.get(2);
+        int headDim = (int) shape.get(3);
+        float[] x = toFloats(input);
+        // Таблицы неизменяемы, как веса: копируются в кучу один раз
+        kernels.rotary(x, (int) shape.get(0), seqLen, numHeads, headDim, cachedFloats(cos), cachedFloats(sin),
+                positions);
+        return input.getManager().create(x, shape);
+    }
+
+    @Override
+    public NDArray gelu(NDArray input) {
+        float[] x = toFloats(input);
+        kernels.gelu(x);
+        return input.getManager().create(x, input.getShape());
+    }
+
+    @Override
+    public NDArray geglu(NDArray gateUp) {
+        Shape shape = gateUp.getShape();
+        int features = (int) shape.get(shape.dimension() - 1) / 2;
+        float[] x = toFloats(gateUp);
+        int rows = x.length / (2 * features);
+        float[] out = new float[rows * features];
+        kernels.geglu(x, out, rows, features);
+        return gateUp.getManager().create(out, replaceLast(shape, features));
+    }
+
+    /**
+     * Сбрасывает закэшированные копии весов сразу, не дожидаясь сборки тензоров.
+     */
+    public void clearWeights() {
+        weights.clear();
+        quantizedWeights.clear();
+    }
+
+    private float[] cachedFloats(NDArray parameter) {
+        return cached(weights, parameter, VectorBackend::toFloats);
+    }
+
+    /**
+     * Копия неизменяемого тензора в куче. Запись удаляется, когда сам тензор становится
+     * недостижим; действие очистки держит только uid, а не тензор.
+     */
+    private static <T> T cached(Map<String, T> cache, NDArray parameter, Function<NDArray, T> copy) {
+        return cache.computeIfAbsent(parameter.getUid(), uid -> {
+            T value = copy.apply(parameter);
+            CLEANER.register(parameter, () -> cache.remove(uid));
+            return value;
+        });
+    }
+
+    /**
+     * Копирует тензор в плоский float-массив в логическом (row-major) порядке.
+     * flatten делает непрерывную копию, если тензор — view с переставленными осями.
+     */
+    private static float[] toFloats(NDArray array) {
+        try (NDArray flat = array.flatten()) {
+            if (flat.getDataType() == DataType.FLOAT32) {
+                return flat.toFloatArray();
+            }
+            try (NDArray converted = flat.toType(DataType.FLOAT32, false)) {
+                return converted.toFloatArray();
+            }
+        }
+    }
+
+    private static byte[] toBytes(NDArray array) {
+        try (NDArray flat = array.flatten()) {
+            return flat.toByteArray();
+        }
+    }
+
+    private static Shape replaceLast(Shape shape, long last) {
+        long[] dims = shape.getShape();
+        dims[dims.length - 1] = last;
+        return new Shape(dims);
+    }
+}
@@ -0,0 +1,344 @@
+package io.github.manjago.javastone.backend;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Вычислительные ядра на чистой Java: SIMD через jdk.incubator.vector,
+ * распараллеливание по ядрам через ForkJoinPool.
+ * Работают с плоскими float-массивами в row-major раскладке, без JNI.
+ */
+public final class VectorKernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /** Ниже этого объема работы (умножений) параллелить невыгодно. */
+    private static final long PARALLEL_THRESHOLD = 1 << 16;
+    /** Столбцов результата на одну задачу пула в matMul. */
+    private static final int COLUMN_BLOCK = 64;
+    /** Элементов на одну задачу пула в поэлементных операциях. */
+    private static final int ELEMENT_BLOCK = 1 << 14;
+
+    private static final float SQRT_2_OVER_PI = (float) Math.sqrt(2.0 / Math.PI);
+
+    private final ForkJoinPool pool;
+
+    public VectorKernels(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * out = a * w^T, где w хранится построчно по выходным признакам.
+     * @param a Shape: (rows, inner)
+     * @param w Shape: (cols, inner)
+     * @param out Shape: (rows, cols)
+     */
+    public void matMulTransposed(float[] a, float[] w, float[] out, int rows, int inner, int cols) {
+        if ((long) rows * inner * cols < PARALLEL_THRESHOLD) {
+            matMulColumns(a, w, out, rows, inner, cols, 0, cols);
+            return;
+        }
+        int blocks = (cols + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        parallel(blocks, block -> {
+            int start = block * COLUMN_BLOCK;
+            matMulColumns(a, w, out, rows, inner, cols, start, Math.min(start + COLUMN_BLOCK, cols));
+        });
+    }
+
+    private static void matMulColumns(float[] a, float[] w, float[] out, int rows, int inner, int cols,
+                                      int colStart, int colEnd) {
+        // Строка весов переиспользуется для всех строк входа, пока она в кэше процессора
+        for (int j = colStart; j < colEnd; j++) {
+            int wOffset = j * inner;
+            for (int r = 0; r < rows; r++) {
+                out[r * cols + j] = dot(a, r * inner, w, wOffset, inner);
+            }
+        }
+    }
+
+    /**
+     * out = a * w^T для весов, квантованных по группам: w = q * scale.
+     * Строка весов деквантуется в буфер задачи, который остается в кэше процессора,
+     * поэтому из памяти читается 1 (int8) или 0.5 (int4) байта на вес вместо 4.
+     * @param a Shape: (rows, inner)
+     * @param q int8: Shape (cols, inner); int4: два значения со сдвигом +8 в байте, Shape (cols, inner / 2)
+     * @param scales Shape: (cols, inner / groupSize)
+     * @param out Shape: (rows, cols)
+     */
+    public void quantizedMatMul(float[] a, byte[] q, float[] scales, float[] out, int rows, int inner, int cols,
+                                int bits, int groupSize) {
+        if ((long) rows * inner * cols < PARALLEL_THRESHOLD) {
+            quantizedColumns(a, q, scales, out, rows, inner, cols, bits, groupSize, 0, cols);
+            return;
+        }
+        int blocks = (cols + COLUMN_BLOCK - 1) / COLUMN_BLOCK;
+        parallel(blocks, block -> {
+            int start = block * COLUMN_BLOCK;
+            quantizedColumns(a, q, scales, out, rows, inner, cols, bits, groupSize,
+                    start, Math.min(start + COLUMN_BLOCK, cols));
+        });
+    }
+
+    private static void quantizedColumns(float[] a, byte[] q, float[] scales, float[] out, int rows, int inner,
+                                         int cols, int bits, int groupSize, int colStart, int colEnd) {
+        float[] row = new float[inner];
+        int rowBytes = bits == 8 ? inner : inner / 2;
+        int groups = inner / groupSize;
+        for (int j = colStart; j < colEnd; j++) {
+            dequantizeRow(q, j * rowBytes, scales, j * groups, row, bits, groupSize);
+            for (int r = 0; r < rows; r++) {
+                out[r * cols + j] = dot(a, r * inner, row, 0, inner);
+            }
+        }
+    }
+
+    private static void dequantizeRow(byte[] q, int offset, float[] scales, int scaleOffset, float[] row,
+                                      int bits, int groupSize) {
+        int k = 0;
+        for (int g = 0; k < row.length; g++) {
+            float scale = scales[scaleOffset + g];
+            int end = k + groupSize;
+            if (bits == 8) {
+                for (; k < end; k++) {
+                    row[k] = q[offset + k] * scale;
+                }
+            } else {
+                // Младший полубайт — четный признак
+                for (; k < end; k += 2) {
+                    int packed = q[offset + k / 2] & 0xFF;
+                    row[k] = ((packed & 0x0F) - 8) * scale;
+                    row[k + 1] = ((packed >>> 4) - 8) * scale;
+                }
+            }
+        }
+    }
+
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upper = SPECIES.loopBound(length);
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * Softmax по строкам, на месте.
+     * @param x Shape: (rows, cols)
+     */
+    public void softmax(float[] x, int rows, int cols) {
+        forEachRow(rows, cols, r -> softmaxRow(x, r * cols, cols));
+    }
+
+    private static void softmaxRow(float[] x, int offset, int length) {
+        int upper = SPECIES.loopBound(length);
+        FloatVector maxVector = FloatVector.broadcast(SPECIES, Float.NEGATIVE_INFINITY);
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            maxVector = maxVector.max(FloatVector.fromArray(SPECIES, x, offset + i));
+        }
+        float max = maxVector.reduceLanes(VectorOperators.MAX);
+        for (; i < length; i++) {
+            max = Math.max(max, x[offset + i]);
+        }
+
+        FloatVector sumVector = FloatVector.zero(SPECIES);
+        for (i = 0; i < upper; i += SPECIES.length()) {
+            FloatVector e = FloatVector.fromArray(SPECIES, x, offset + i).sub(max).lanewise(VectorOperators.EXP);
+            e.intoArray(x, offset + i);
+            sumVector = sumVector.add(e);
+        }
+        float sum = sumVector.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            float e = (float) Math.exp(x[offset + i] - max);
+            x[offset + i] = e;
+            sum += e;
+        }
+
+        float inverse = 1f / sum;
+        for (i = 0; i < upper; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, x, offset + i).mul(inverse).intoArray(x, offset + i);
+        }
+        for (; i < length; i++) {
+            x[offset + i] *= inverse;
+        }
+    }
+
+    /**
+     * Layer Normalization по строкам. Сумма и сумма квадратов считаются за один проход.
+     * @param x Shape: (rows, cols)
+     * @param out Shape: (rows, cols)
+     * @param gamma Shape: (cols)
+     * @param beta Shape: (cols)
+     */
+    public void layerNorm(float[] x, float[] out, int rows, int cols, float[] gamma, float[] beta, float epsilon) {
+        forEachRow(rows, cols, r -> {
+            int offset = r * cols;
+            int upper = SPECIES.loopBound(cols);
+            FloatVector sumVector = FloatVector.zero(SPECIES);
+            FloatVector squareVector = FloatVector.zero(SPECIES);
+            int i = 0;
+            for (; i < upper; i += SPECIES.length()) {
+                FloatVector v = FloatVector.fromArray(SPECIES, x, offset + i);
+                sumVector = sumVector.add(v);
+                squareVector = v.fma(v, squareVector);
+            }
+            float sum = sumVector.reduceLanes(VectorOperators.ADD);
+            float squares = squareVector.reduceLanes(VectorOperators.ADD);
+            for (; i < cols; i++) {
+                float v = x[offset + i];
+                sum += v;
+                squares += v * v;
+            }
+            float mean = sum / cols;
+            float variance = Math.max(squares / cols - mean * mean, 0f);
+            float inverse = (float) (1.0 / Math.sqrt(variance + epsilon));
+
+            for (i = 0; i < upper; i += SPECIES.length()) {
+                FloatVector v = FloatVector.fromArray(SPECIES, x, offset + i).sub(mean).mul(inverse);
+                v.fma(FloatVector.fromArray(SPECIES, gamma, i), FloatVector.fromArray(SPECIES, beta, i))
+                        .intoArray(out, offset + i);
+            }
+            for (; i < cols; i++) {
+                out[offset + i] = (x[offset + i] - mean) * inverse * gamma[i] + beta[i];
+            }
+        });
+    }
+
+    /**
+     * RMS Normalization по строкам, на месте: сумма квадратов за один проход, затем масштаб.
+     * @param x Shape: (rows, cols)
+     * @param scale Shape: (cols)
+     */
+    public void rmsNorm(float[] x, int rows, int cols, float[] scale, float epsilon) {
+        forEachRow(rows, cols, r -> {
+            int offset = r * cols;
+            float squares = dot(x, offset, x, offset, cols);
+            float inverse = (float) (1.0 / Math.sqrt(squares / cols + epsilon));
+            int upper = SPECIES.loopBound(cols);
+            int i = 0;
+            for (; i < upper; i += SPECIES.length()) {
+                FloatVector.fromArray(SPECIES, x, offset + i).mul(inverse)
+                        .mul(FloatVector.fromArray(SPECIES, scale, i))
+                        .intoArray(x, offset + i);
+            }
+            for (; i < cols; i++) {
+                x[offset + i] = x[offset + i] * inverse * scale[i];
+            }
+        });
+    }
+
+    /**
+     * Rotary position embedding, на месте: строка (b, s, h) поворачивается по строке таблиц
+     * positions[b * seqLen + s] (или positions[s], если позиции общие для пакета).
+     * @param x Shape: (batch, seqLen, numHeads, headDim)
+     * @param cos Shape: (max_positions, headDim / 2)
+     * @param sin Shape: (max_positions, headDim / 2)
+     */
+    public void rotary(float[] x, int batch, int seqLen, int numHeads, int headDim,
+                       float[] cos, float[] sin, long[] positions) {
+        int half = headDim / 2;
+        boolean shared = positions.length == seqLen;
+        forEachRow(batch * seqLen * numHeads, headDim, r -> {
+            int token = r / numHeads;
+            int table = (int) positions[shared ? token % seqLen : token] * half;
+            int offset = r * headDim;
+            int upper = SPECIES.loopBound(half);
+            int i = 0;
+            for (; i < upper; i += SPECIES.length()) {
+                FloatVector x1 = FloatVector.fromArray(SPECIES, x, offset + i);
+                FloatVector x2 = FloatVector.fromArray(SPECIES, x, offset + half + i);
+                FloatVector c = FloatVector.fromArray(SPECIES, cos, table + i);
+                FloatVector s = FloatVector.fromArray(SPECIES, sin, table + i);
+                x1.mul(c).sub(x2.mul(s)).intoArray(x, offset + i);
+                x2.mul(c).add(x1.mul(s)).intoArray(x, offset + half + i);
+            }
+            for (; i < half; i++) {
+                float x1 = x[offset + i];
+                float x2 = x[offset + half + i];
+                x[offset + i] = x1 * cos[table + i] - x2 * sin[table + i];
+                x[offset + half + i] = x2 * cos[table + i] + x1 * sin[table + i];
+            }
+        });
+    }
+
+    /**
+     * GELU (tanh-аппроксимация), на месте.
+     */
+    public void gelu(float[] x) {
+        int length = x.length;
+        if (length < PARALLEL_THRESHOLD) {
+            geluRange(x, 0, length);
+            return;
+        }
+        int chunks = (length + ELEMENT_BLOCK - 1) / ELEMENT_BLOCK;
+        parallel(chunks, c -> geluRange(x, c * ELEMENT_BLOCK, Math.min((c + 1) * ELEMENT_BLOCK, length)));
+    }
+
+    /**
+     * GeGLU по строкам: out = gelu(gate) * up, где gate и up — половины строки gateUp.
+     * GELU не записывается в промежуточный массив: результат строки вычисляется за один проход.
+     * @param gateUp Shape: (rows, 2 * features)
+     * @param out Shape: (rows, features)
+     */
+    public void geglu(float[] gateUp, float[] out, int rows, int features) {
+        forEachRow(rows, 2 * features, r -> {
+            int in = r * 2 * features;
+            int offset = r * features;
+            int upper = SPECIES.loopBound(features);
+            int i = 0;
+            for (; i < upper; i += SPECIES.length()) {
+                FloatVector g = FloatVector.fromArray(SPECIES, gateUp, in + i);
+                FloatVector u = FloatVector.fromArray(SPECIES, gateUp, in + features + i);
+                FloatVector inner = g.mul(g).mul(g).mul(0.044715f).add(g).mul(SQRT_2_OVER_PI);
+                inner.lanewise(VectorOperators.TANH).add(1f).mul(g).mul(0.5f).mul(u).intoArray(out, offset + i);
+            }
+            for (; i < features; i++) {
+                float g = gateUp[in + i];
+                float gelu = 0.5f * g * (1f + (float) Math.tanh(SQRT_2_OVER_PI * (g + 0.044715f * g * g * g)));
+                out[offset + i] = gelu * gateUp[in + features + i];
+            }
+        });
+    }
+
+    private static void geluRange(float[] x, int start, int end) {
+        int i = start;
+        int upper = start + SPECIES.loopBound(end - start);
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector v = FloatVector.fromArray(SPECIES, x, i);
+            FloatVector inner = v.mul(v).mul(v).mul(0.044715f).add(v).mul(SQRT_2_OVER_PI);
+            FloatVector result = inner.lanewise(VectorOperators.TANH).add(1f).mul(v).mul(0.5f);
+            result.intoArray(x, i);
+        }
+        for (; i < end; i++) {
+            float v = x[i];
+            x[i] = 0.5f * v * (1f + (float) Math.tanh(SQRT_2_OVER_PI * (v + 0.044715f * v * v * v)));
+        }
+    }
+
+    private void forEachRow(int rows, int cols, IntConsumer rowTask) {
+        if ((long) rows * cols < PARALLEL_THRESHOLD || rows == 1) {
+            for (int r = 0; r < rows; r++) {
+                rowTask.accept(r);
+            }
+            return;
+        }
+        parallel(rows, rowTask);
+    }
+
+    private void parallel(int tasks, IntConsumer task) {
+        // Параллельный стрим, запущенный из задачи пула, исполняется потоками этого пула
+        pool.submit(() -> IntStream.range(0, tasks).parallel().forEach(task)).join();
+    }
+}
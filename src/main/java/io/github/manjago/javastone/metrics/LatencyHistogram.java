@@ -0,0 +1,63 @@
+package io.github.manjago.javastone.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей без блокировок: корзина i хранит значения в [2^i, 2^(i+1)) наносекунд.
+ * Перцентили — верхняя граница корзины, т.е. оценка сверху с точностью до 2x.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * @param count Количество измерений.
+     * @param totalNanos Сумма длительностей.
+     * @param p50Nanos Медиана (оценка сверху).
+     * @param p99Nanos 99-й перцентиль (оценка сверху).
+     * @param maxNanos Максимум.
+     */
+    public record Snapshot(long count, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+
+        public double meanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+    }
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 1);
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value));
+        total.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        long maxNanos = max.get();
+        return new Snapshot(count, total.sum(), percentile(counts, count, 0.50, maxNanos),
+                percentile(counts, count, 0.99, maxNanos), maxNanos);
+    }
+
+    private static long percentile(long[] counts, long count, double fraction, long maxNanos) {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i >= 62 ? maxNanos : Math.min((1L << (i + 1)) - 1, maxNanos);
+            }
+        }
+        return 0;
+    }
+}
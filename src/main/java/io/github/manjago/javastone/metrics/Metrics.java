@@ -0,0 +1,166 @@
+package io.github.manjago.javastone.metrics;
+
+/**
+ * Точка входа инструментирования инференса.
+ * Включается системным свойством javastone.metrics=true или программно через {@link #enable}.
+ * В выключенном состоянии каждая точка замера — одно чтение volatile-поля и проверка на null:
+ * ни аллокаций, ни вызовов System.nanoTime().
+ * <p>
+ * Включенные метрики доступны снимком {@link MetricsRegistry#snapshot()} и, параллельно,
+ * JFR-событиями io.github.manjago.javastone.Stage / Token, которые пишутся только
+ * во время активной записи JFR (например, -XX:StartFlightRecording или jcmd JFR.start).
+ * <pre>
+ * Metrics.Span span = Metrics.start(Stage.FFN, layer);
+ * ...
+ * Metrics.end(span);
+ * </pre>
+ */
+public final class Metrics {
+
+    public static final String PROPERTY = "javastone.metrics";
+
+    private static volatile MetricsRegistry registry = Boolean.getBoolean(PROPERTY) ? new MetricsRegistry() : null;
+
+    // Байты промежуточных тензоров, освобожденные в этом потоке; разность дает объем участка
+    private static final ThreadLocal<long[]> THREAD_NATIVE_BYTES = ThreadLocal.withInitial(() -> new long[1]);
+
+    private Metrics() {
+    }
+
+    public static boolean isEnabled() {
+        return registry != null;
+    }
+
+    /**
+     * Включает метрики, сохраняя уже накопленные значения.
+     */
+    public static synchronized MetricsRegistry enable() {
+        if (registry == null) {
+            registry = new MetricsRegistry();
+        }
+        return registry;
+    }
+
+    /**
+     * Включает метрики с чистого листа.
+     */
+    public static MetricsRegistry reset() {
+        MetricsRegistry fresh = new MetricsRegistry();
+        registry = fresh;
+        return fresh;
+    }
+
+    public static void disable() {
+        registry = null;
+    }
+
+    /**
+     * @return Текущий накопитель или null, если метрики выключены.
+     */
+    public static MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Начинает замер участка.
+     * @param layer Номер трансформерного блока; -1 для участков вне блоков.
+     * @return Открытый замер или null, если метрики выключены.
+     */
+    public static Span start(Stage stage, int layer) {
+        MetricsRegistry current = registry;
+        return current == null ? null : new Span(current, stage, layer);
+    }
+
+    public static void end(Span span) {
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    /**
+     * Учитывает байты промежуточных тензоров, освобожденных областью прямого прохода.
+     */
+    public static void recordNativeBytes(long bytes) {
+        MetricsRegistry current = registry;
+        if (current != null) {
+            THREAD_NATIVE_BYTES.get()[0] += bytes;
+            current.recordNativeBytes(bytes);
+        }
+    }
+
+    /**
+     * Первый токен последовательности: время от поступления запроса до выбора токена.
+     */
+    public static void recordFirstToken(long promptTokens, long nanos) {
+        MetricsRegistry current = registry;
+        if (current != null) {
+            current.recordFirstToken(promptTokens, nanos);
+            TokenEvent event = new TokenEvent();
+            if (event.shouldCommit()) {
+                event.firstToken = true;
+                event.tokens = promptTokens;
+                event.latency = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Один шаг декодирования, продвинувший tokens последовательностей.
+     */
+    public static void recordDecodeStep(long tokens, long nanos) {
+        MetricsRegistry current = registry;
+        if (current != null) {
+            current.recordDecodeStep(tokens, nanos);
+            TokenEvent event = new TokenEvent();
+            if (event.shouldCommit()) {
+                event.tokens = tokens;
+                event.latency = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Открытый замер участка. Создается только при включенных метриках.
+     */
+    public static final class Span {
+
+        private final MetricsRegistry registry;
+        private final Stage stage;
+        private final int layer;
+        private final StageEvent event;
+        private final long startBytes;
+        private final long startNanos;
+
+        private Span(MetricsRegistry registry, Stage stage, int layer) {
+            this.registry = registry;
+            this.stage = stage;
+            this.layer = layer;
+            StageEvent stageEvent = new StageEvent();
+            if (stageEvent.isEnabled()) {
+                stageEvent.begin();
+                this.event = stageEvent;
+            } else {
+                this.event = null;
+            }
+            this.startBytes = THREAD_NATIVE_BYTES.get()[0];
+            this.startNanos = System.nanoTime();
+        }
+
+        private void end() {
+            long nanos = System.nanoTime() - startNanos;
+            long bytes = THREAD_NATIVE_BYTES.get()[0] - startBytes;
+            registry.recordStage(stage, layer, nanos, bytes);
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.stage = stage.name();
+                    event.layer = layer;
+                    event.nativeBytes = bytes;
+                    event.commit();
+                }
+            }
+        }
+    }
+}
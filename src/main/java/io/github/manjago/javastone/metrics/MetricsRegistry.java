@@ -0,0 +1,61 @@
+package io.github.manjago.javastone.metrics;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Накопитель метрик: гистограммы по участкам и блокам, задержки генерации, счетчики токенов.
+ * Все методы записи потокобезопасны и не блокируют.
+ */
+public final class MetricsRegistry {
+
+    private record StageKey(Stage stage, int layer) {}
+
+    private static final class StageMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder nativeBytes = new LongAdder();
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<StageKey, StageMetrics> stages = new ConcurrentHashMap<>();
+    private final LatencyHistogram timeToFirstToken = new LatencyHistogram();
+    private final LatencyHistogram interTokenLatency = new LatencyHistogram();
+    private final LongAdder promptTokens = new LongAdder();
+    private final LongAdder generatedTokens = new LongAdder();
+    private final LongAdder nativeBytes = new LongAdder();
+
+    void recordStage(Stage stage, int layer, long nanos, long bytes) {
+        StageMetrics metrics = stages.computeIfAbsent(new StageKey(stage, layer), key -> new StageMetrics());
+        metrics.latency.record(nanos);
+        metrics.nativeBytes.add(bytes);
+    }
+
+    void recordNativeBytes(long bytes) {
+        nativeBytes.add(bytes);
+    }
+
+    void recordFirstToken(long prompt, long nanos) {
+        timeToFirstToken.record(nanos);
+        promptTokens.add(prompt);
+        generatedTokens.increment();
+    }
+
+    void recordDecodeStep(long tokens, long nanos) {
+        interTokenLatency.record(nanos);
+        generatedTokens.add(tokens);
+    }
+
+    public MetricsSnapshot snapshot() {
+        List<MetricsSnapshot.StageStats> stageStats = stages.entrySet().stream()
+                .map(entry -> new MetricsSnapshot.StageStats(entry.getKey().stage(), entry.getKey().layer(),
+                        entry.getValue().latency.snapshot(), entry.getValue().nativeBytes.sum()))
+                .sorted(Comparator.comparingInt(MetricsSnapshot.StageStats::layer)
+                        .thenComparing(MetricsSnapshot.StageStats::stage))
+                .toList();
+        return new MetricsSnapshot(System.nanoTime() - startNanos, stageStats, timeToFirstToken.snapshot(),
+                interTokenLatency.snapshot(), promptTokens.sum(), generatedTokens.sum(), nativeBytes.sum());
+    }
+}
@@ -0,0 +1,51 @@
+package io.github.manjago.javastone.metrics;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Снимок метрик инференса.
+ * @param elapsedNanos Время с момента включения метрик.
+ * @param stages Участки прямого прохода, по блокам.
+ * @param timeToFirstToken Время до первого токена (prefill + выбор токена).
+ * @param interTokenLatency Длительность одного шага декодирования.
+ * @param promptTokens Сколько токенов промптов обработано.
+ * @param generatedTokens Сколько токенов сгенерировано.
+ * @param nativeBytes Байты промежуточных тензоров, освобожденные областями прямых проходов.
+ */
+public record MetricsSnapshot(long elapsedNanos, List<StageStats> stages,
+                              LatencyHistogram.Snapshot timeToFirstToken,
+                              LatencyHistogram.Snapshot interTokenLatency,
+                              long promptTokens, long generatedTokens, long nativeBytes) {
+
+    /**
+     * @param layer Номер трансформерного блока; -1 для участков вне блоков.
+     * @param nativeBytes Байты промежуточных тензоров участка.
+     */
+    public record StageStats(Stage stage, int layer, LatencyHistogram.Snapshot latency, long nativeBytes) {}
+
+    public double tokensPerSecond() {
+        return elapsedNanos == 0 ? 0 : generatedTokens * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Текстовый отчет: по строке на участок, затем сводка генерации.
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.ROOT, "%-10s %5s %8s %10s %10s %10s %12s%n",
+                "stage", "layer", "count", "mean_us", "p99_us", "max_us", "bytes"));
+        for (StageStats stats : stages) {
+            LatencyHistogram.Snapshot latency = stats.latency();
+            out.append(String.format(Locale.ROOT, "%-10s %5d %8d %10.1f %10.1f %10.1f %12d%n",
+                    stats.stage(), stats.layer(), latency.count(), latency.meanNanos() / 1e3,
+                    latency.p99Nanos() / 1e3, latency.maxNanos() / 1e3, stats.nativeBytes()));
+        }
+        out.append(String.format(Locale.ROOT,
+                "ttft mean %.1f ms, p99 %.1f ms; itl mean %.1f ms, p99 %.1f ms; %d prompt / %d generated tokens, %.1f tokens/s",
+                timeToFirstToken.meanNanos() / 1e6, timeToFirstToken.p99Nanos() / 1e6,
+                interTokenLatency.meanNanos() / 1e6, interTokenLatency.p99Nanos() / 1e6,
+                promptTokens, generatedTokens, tokensPerSecond()));
+        return out.toString();
+    }
+}
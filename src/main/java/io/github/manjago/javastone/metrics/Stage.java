@@ -0,0 +1,12 @@
+package io.github.manjago.javastone.metrics;
+
+/**
+ * Измеряемые участки прямого прохода и генерации.
+ */
+public enum Stage {
+    EMBEDDING,
+    ATTENTION,
+    FFN,
+    LM_HEAD,
+    SAMPLING
+}
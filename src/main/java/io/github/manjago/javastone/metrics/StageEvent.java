@@ -0,0 +1,29 @@
+package io.github.manjago.javastone.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR-событие одного участка прямого прохода; длительность — стандартное поле события.
+ */
+@Name("io.github.manjago.javastone.Stage")
+@Label("Forward Stage")
+@Category({"Javastone", "Inference"})
+@Description("Wall time of one stage of the model forward pass")
+class StageEvent extends jdk.jfr.Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Layer")
+    @Description("Transformer block index, -1 for stages outside blocks")
+    int layer;
+
+    @Label("Native Bytes")
+    @Description("Bytes of intermediate tensors freed by forward scopes during the stage")
+    @DataAmount
+    long nativeBytes;
+}
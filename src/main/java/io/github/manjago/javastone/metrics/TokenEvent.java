@@ -0,0 +1,28 @@
+package io.github.manjago.javastone.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR-событие выдачи токенов: первый токен (TTFT) или шаг декодирования (межтокенная задержка).
+ */
+@Name("io.github.manjago.javastone.Token")
+@Label("Token Latency")
+@Category({"Javastone", "Inference"})
+@Description("Time to first token or inter-token latency of generation")
+class TokenEvent extends jdk.jfr.Event {
+
+    @Label("First Token")
+    boolean firstToken;
+
+    @Label("Tokens")
+    @Description("Prompt tokens for the first token, sequences advanced for a decode step")
+    long tokens;
+
+    @Label("Latency")
+    @Timespan
+    long latency;
+}
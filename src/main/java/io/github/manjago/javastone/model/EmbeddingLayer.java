@@ -1,6 +1,8 @@
 package io.github.manjago.javastone.model;
 
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
 
 /**
  * Простая реализация слоя эмбеддингов.
@@ -11,7 +13,8 @@ public class EmbeddingLayer {
     private final NDArray weight;
 
     /**
-     * @param weight Матрица весов эмбеддингов. Shape: (vocab_size, embed_dim)
+     * @param weight Матрица весов эмбеддингов. Shape: (vocab_size, embed_dim).
+     *               Может храниться в FLOAT32, BFLOAT16 или FLOAT16.
      */
     public EmbeddingLayer(NDArray weight) {
         this.weight = weight;
@@ -23,7 +26,22 @@ public class EmbeddingLayer {
      * @return Тензор с эмбеддингами. Shape: (batch_size, seq_len, embed_dim)
      */
     public NDArray forward(NDArray input) {
-        // DJL позволяет "выбирать" строки из тензора по индексам с помощью get()
-        return weight.get(input);
+        // DJL позволяет "выбирать" строки из тензора по индексам с помощью get().
+        // Результат создаем в менеджере входа, а не весов, иначе он проживет столько же, сколько модель
+        NDArray rows = weight.get(input.getManager(), new NDIndex("{}", input));
+        if (rows.getDataType() == DataType.FLOAT32) {
+            return rows;
+        }
+        // Веса в половинной точности: активации модели всегда FLOAT32
+        NDArray upcast = rows.toType(DataType.FLOAT32, false);
+        rows.close();
+        return upcast;
+    }
+
+    /**
+     * Матрица эмбеддингов; у Gemma она же служит весами LM head (см. {@link LinearLayer#tiedTo}).
+     */
+    public NDArray getWeight() {
+        return weight;
     }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Область памяти одного прямого прохода.
+ * Входы временно прикрепляются к под-менеджеру, поэтому все промежуточные тензоры
+ * создаются в нем и освобождаются при close(). Наружу выходят только тензоры,
+ * переданные в {@link #keep}; входы возвращаются своим прежним менеджерам.
+ * <pre>
+ * try (ForwardScope scope = ForwardScope.open(input)) {
+ *     NDArray x = ...;
+ *     return scope.keep(x);
+ * }
+ * </pre>
+ */
+public final class ForwardScope implements AutoCloseable {
+
+    private final NDManager parent;
+    private final NDManager scope;
+    private final Set<String> inputs = new HashSet<>();
+
+    private ForwardScope(NDManager parent) {
+        this.parent = parent;
+        this.scope = parent.newSubManager();
+    }
+
+    /**
+     * Открывает область; результаты будут возвращены менеджеру первого входа.
+     */
+    public static ForwardScope open(NDArray... inputs) {
+        ForwardScope forwardScope = new ForwardScope(inputs[0].getManager());
+        for (NDArray input : inputs) {
+            input.tempAttach(forwardScope.scope);
+            forwardScope.inputs.add(input.getUid());
+        }
+        return forwardScope;
+    }
+
+    public NDManager getManager() {
+        return scope;
+    }
+
+    /**
+     * Переносит результат из области в менеджер, которому принадлежал вход.
+     */
+    public NDArray keep(NDArray output) {
+        output.attach(parent);
+        NativeMemoryStats.recordEscape(NativeMemoryStats.bytesOf(output));
+        return output;
+    }
+
+    @Override
+    public void close() {
+        long bytes = 0;
+        for (NDArray array : scope.getManagedArrays()) {
+            if (!inputs.contains(array.getUid())) {
+                bytes += NativeMemoryStats.bytesOf(array);
+            }
+        }
+        scope.close();
+        NativeMemoryStats.recordScope(bytes);
+    }
+}
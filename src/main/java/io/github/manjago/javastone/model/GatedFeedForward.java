@@ -0,0 +1,67 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.backend.Backends;
+
+/**
+ * Гейтированный FFN Gemma (GeGLU): down_proj(gelu(gate_proj(x)) * up_proj(x)).
+ * gate_proj и up_proj объединены в один слой gate_up_proj: обе проекции считаются одним
+ * умножением матриц, а gelu(gate) * up — одной поэлементной операцией бэкенда,
+ * без отдельных тензоров gelu(gate) размера intermediate_size.
+ */
+public class GatedFeedForward {
+
+    private final LinearLayer gate_up_proj; // Shape весов: (2 * intermediate_size, embed_dim), сначала строки gate
+    private final LinearLayer down_proj;
+
+    /**
+     * @param gate_up_proj Объединенная проекция: выход — [gate, up] по последней оси.
+     * @param down_proj Shape весов: (embed_dim, intermediate_size)
+     */
+    public GatedFeedForward(LinearLayer gate_up_proj, LinearLayer down_proj) {
+        this.gate_up_proj = gate_up_proj;
+        this.down_proj = down_proj;
+    }
+
+    /**
+     * Собирает FFN из раздельных проекций, объединяя gate_proj и up_proj (веса копируются).
+     */
+    public GatedFeedForward(LinearLayer gate_proj, LinearLayer up_proj, LinearLayer down_proj) {
+        this(LinearLayer.concat(gate_proj, up_proj), down_proj);
+    }
+
+    /**
+     * @param input Shape: (batch_size, seq_len, embed_dim)
+     * @return Shape: (batch_size, seq_len, embed_dim)
+     */
+    public NDArray forward(NDArray input) {
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            NDArray gateUp = gate_up_proj.forward(input);
+            NDArray hidden = Backends.current().geglu(gateUp);
+            return scope.keep(down_proj.forward(hidden));
+        }
+    }
+
+    // --- Тестовый блок: объединенная проекция должна совпадать с тремя отдельными ---
+    public static void main(String[] args) {
+        System.out.println("--- Testing GatedFeedForward ---");
+
+        try (NDManager manager = NDManager.newBaseManager()) {
+            int embedDim = 16;
+            int intermediate = 64;
+            LinearLayer gate = new LinearLayer(manager.randomNormal(new Shape(intermediate, embedDim)), null);
+            LinearLayer up = new LinearLayer(manager.randomNormal(new Shape(intermediate, embedDim)), null);
+            LinearLayer down = new LinearLayer(manager.randomNormal(new Shape(embedDim, intermediate)), null);
+            GatedFeedForward ffn = new GatedFeedForward(gate, up, down);
+
+            NDArray input = manager.randomNormal(new Shape(2, 5, embedDim));
+            NDArray output = ffn.forward(input);
+            NDArray reference = down.forward(Backends.current().gelu(gate.forward(input)).mul(up.forward(input)));
+            System.out.println("Output shape: " + output.getShape());
+            System.out.println("Max abs difference with separate projections (should be ~0): "
+                    + output.sub(reference).abs().max().getFloat());
+        }
+    }
+}
@@ -2,7 +2,12 @@ package io.github.manjago.javastone.model;
 
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.metrics.Metrics;
+import io.github.manjago.javastone.metrics.Stage;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -10,32 +15,301 @@ import java.util.List;
  */
 public class GemmaModel {
 
+    /**
+     * Размер куска промпта по умолчанию для {@link #prefill}.
+     */
+    public static final int DEFAULT_PREFILL_CHUNK = 512;
+
     private final EmbeddingLayer embedding;
     private final List<TransformerBlock> blocks;
-    private final LayerNorm finalNorm;
+    private final RMSNorm finalNorm;
     private final LinearLayer outputLayer; // Также называется "LM Head"
+    private final float embeddingScale;
+
+    /**
+     * Модель со связанными весами: LM head использует матрицу эмбеддингов (как у Gemma),
+     * поэтому таблица размера (vocab_size, embed_dim) хранится в памяти один раз.
+     */
+    public GemmaModel(EmbeddingLayer embedding, List<TransformerBlock> blocks, RMSNorm finalNorm) {
+        this(embedding, blocks, finalNorm, LinearLayer.tiedTo(embedding));
+    }
 
-    public GemmaModel(EmbeddingLayer embedding, List<TransformerBlock> blocks, LayerNorm finalNorm, LinearLayer outputLayer) {
+    public GemmaModel(EmbeddingLayer embedding, List<TransformerBlock> blocks, RMSNorm finalNorm, LinearLayer outputLayer) {
         this.embedding = embedding;
         this.blocks = blocks;
         this.finalNorm = finalNorm;
         this.outputLayer = outputLayer;
+        NDArray weight = embedding.getWeight();
+        this.embeddingScale = embeddingScale(weight.getShape().get(1), weight.getDataType());
+        for (int i = 0; i < blocks.size(); i++) {
+            blocks.get(i).bindLayerIndex(i);
+        }
     }
 
     public NDArray forward(NDArray tokens) {
-        // 1. Превращаем токены в векторы
-        NDArray x = embedding.forward(tokens);
+        return forward(tokens, null);
+    }
 
-        // 2. Последовательно прогоняем через все блоки
-        for (TransformerBlock block : blocks) {
-            x = block.forward(x);
+    /**
+     * Прямой проход с K/V кэшем: обрабатываются только новые токены,
+     * а их ключи и значения дописываются в кэш.
+     * @param tokens Новые токены. Shape: (batch_size, new_len)
+     * @param cache Кэш последовательности. Может быть null.
+     * @return Логиты для новых позиций. Shape: (batch_size, new_len, vocab_size)
+     */
+    public NDArray forward(NDArray tokens, KVCache cache) {
+        try (ForwardScope scope = ForwardScope.open(tokens)) {
+            return scope.keep(compute(tokens, cache));
+        }
+    }
+
+    /**
+     * Прямой проход, в котором на словарь проецируется только последняя позиция.
+     * Для генерации нужны лишь логиты следующего токена, поэтому prefill промпта
+     * не создает тензор логитов размера (seq_len, vocab_size).
+     * @param tokens Новые токены. Shape: (batch_size, new_len)
+     * @param cache Кэш последовательности. Может быть null.
+     * @return Логиты следующего токена. Shape: (batch_size, vocab_size)
+     */
+    public NDArray forwardLast(NDArray tokens, KVCache cache) {
+        try (ForwardScope scope = ForwardScope.open(tokens)) {
+            return scope.keep(lastLogits(hidden(tokens, cache)));
+        }
+    }
+
+    /**
+     * Заполнение кэша длинным промптом кусками по chunkSize токенов.
+     * Каждый кусок проходит модель в своей области памяти, поэтому пиковая память прохода
+     * ограничена размером куска (и блоком внимания), а растет линейно лишь K/V кэш.
+     * @param tokens Промпт, хотя бы один токен. Shape: (batch_size, seq_len)
+     * @param cache Кэш, в который дописываются позиции промпта.
+     * @return Логиты токена, следующего за промптом. Shape: (batch_size, vocab_size)
+     */
+    public NDArray prefill(NDArray tokens, KVCache cache, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        long seqLen = tokens.getShape().get(1);
+        if (seqLen == 0) {
+            throw new IllegalArgumentException("Prompt must not be empty");
         }
+        for (long start = 0; ; start += chunkSize) {
+            long end = Math.min(start + chunkSize, seqLen);
+            try (ForwardScope scope = ForwardScope.open(tokens)) {
+                NDArray x = hidden(tokens.get(new NDIndex(":, {}:{}", start, end)), cache);
+                if (end == seqLen) {
+                    return scope.keep(lastLogits(x));
+                }
+            }
+        }
+    }
+
+    /**
+     * Prefill промпта одной последовательности с переиспользованием общего префикса:
+     * K/V найденного в prefixCache префикса копируются в кэш, модель прогоняет только остаток,
+     * после чего полные блоки промпта сохраняются для следующих запросов.
+     * @param manager Менеджер результата; временный тензор токенов в нем не остается.
+     * @param cache Пустой кэш последовательности.
+     * @param prefixCache Общий кэш префиксов. Может быть null.
+     * @return Логиты токена, следующего за промптом. Shape: (1, vocab_size)
+     */
+    public NDArray prefill(NDManager manager, long[] prompt, KVCache cache, PrefixCache prefixCache) {
+        if (prompt.length == 0) {
+            throw new IllegalArgumentException("Prompt must not be empty");
+        }
+        int restored = prefixCache == null ? 0 : prefixCache.restore(prompt, cache);
+        long[] rest = Arrays.copyOfRange(prompt, restored, prompt.length);
+        NDArray logits;
+        try (NDArray tokens = manager.create(rest, new Shape(1, rest.length))) {
+            logits = prefill(tokens, cache, DEFAULT_PREFILL_CHUNK);
+        }
+        if (prefixCache != null) {
+            prefixCache.store(prompt, cache);
+        }
+        return logits;
+    }
 
+    private NDArray lastLogits(NDArray hidden) {
+        return logits(hidden.get(new NDIndex(":, -1, :")));
+    }
+
+    private NDArray compute(NDArray tokens, KVCache cache) {
+        return logits(hidden(tokens, cache));
+    }
+
+    private NDArray logits(NDArray hidden) {
+        Metrics.Span span = Metrics.start(Stage.LM_HEAD, -1);
         // 3. Финальная нормализация
-        x = finalNorm.forward(x);
+        NDArray x = finalNorm.forward(hidden);
 
         // 4. Проецируем на словарь для получения логитов
-        return outputLayer.forward(x);
+        NDArray logits = outputLayer.forward(x);
+        Metrics.end(span);
+        return logits;
+    }
+
+    private NDArray embed(NDArray tokens) {
+        Metrics.Span span = Metrics.start(Stage.EMBEDDING, -1);
+        // Gemma масштабирует эмбеддинги на sqrt(hidden_size); LM head использует веса без масштаба
+        NDArray x = embedding.forward(tokens).muli(embeddingScale);
+        Metrics.end(span);
+        return x;
+    }
+
+    /**
+     * Множитель эмбеддингов sqrt(hidden_size), округленный до типа весов эмбеддингов,
+     * как в реализации Gemma из transformers (normalizer в dtype модели).
+     */
+    static float embeddingScale(long hiddenSize, DataType type) {
+        float scale = (float) Math.sqrt(hiddenSize);
+        return switch (type) {
+            case FLOAT16 -> Float.float16ToFloat(Float.floatToFloat16(scale));
+            case BFLOAT16 -> {
+                // Округление к ближайшему с четным младшим битом до старших 16 бит
+                int bits = Float.floatToRawIntBits(scale);
+                bits += 0x7FFF + ((bits >>> 16) & 1);
+                yield Float.intBitsToFloat(bits & 0xFFFF0000);
+            }
+            default -> scale;
+        };
+    }
+
+    private NDArray hidden(NDArray tokens, KVCache cache) {
+        // 1. Превращаем токены в векторы
+        NDArray x = embed(tokens);
+
+        // 2. Последовательно прогоняем через все блоки
+        return runBlocks(x, 0, blocks.size(), cache);
+    }
+
+    private NDArray runBlocks(NDArray x, int from, int to, KVCache cache) {
+        for (int i = from; i < to; i++) {
+            x = blocks.get(i).forward(x, cache == null ? null : cache.layer(i));
+        }
+        return x;
+    }
+
+    // --- Части прохода для конвейерного исполнения (см. serving.PipelineExecutor) ---
+
+    public int numBlocks() {
+        return blocks.size();
+    }
+
+    /**
+     * Эмбеддинги токенов; результат в менеджере tokens.
+     * @return Shape: (batch_size, seq_len, embed_dim)
+     */
+    public NDArray embedTokens(NDArray tokens) {
+        return embed(tokens);
+    }
+
+    /**
+     * Прогоняет скрытые состояния через блоки [from, to); результат в менеджере hidden.
+     * @param cache Кэш последовательности; используются только слои [from, to). Может быть null.
+     */
+    public NDArray forwardBlocks(NDArray hidden, int from, int to, KVCache cache) {
+        try (ForwardScope scope = ForwardScope.open(hidden)) {
+            return scope.keep(runBlocks(hidden, from, to, cache));
+        }
+    }
+
+    /**
+     * Финальная нормализация и LM head для последней позиции; результат в менеджере hidden.
+     * @return Shape: (batch_size, vocab_size)
+     */
+    public NDArray lastPositionLogits(NDArray hidden) {
+        try (ForwardScope scope = ForwardScope.open(hidden)) {
+            return scope.keep(lastLogits(hidden));
+        }
+    }
+
+    /**
+     * Один шаг декодирования: прогоняет по одному новому токену на последовательность.
+     * @param token Shape: (batch_size, 1)
+     * @param cache Кэш, заполненный предыдущими шагами (или prefill).
+     * @return Логиты следующего токена. Shape: (batch_size, vocab_size)
+     */
+    public NDArray forwardStep(NDArray token, KVCache cache) {
+        if (token.getShape().dimension() != 2 || token.getShape().get(1) != 1) {
+            throw new IllegalArgumentException("forwardStep expects tokens of shape (batch_size, 1), got " + token.getShape());
+        }
+        return forwardLast(token, cache);
+    }
+
+    /**
+     * Один шаг декодирования для пакета независимых последовательностей разной длины.
+     * Строка i пакета продолжает последовательность из caches.get(i).
+     * @param tokens Shape: (batch_size, 1)
+     * @param caches По одному кэшу на строку пакета.
+     * @return Логиты следующего токена. Shape: (batch_size, vocab_size)
+     */
+    public NDArray forwardBatchStep(NDArray tokens, List<KVCache> caches) {
+        try (ForwardScope scope = ForwardScope.open(tokens)) {
+            NDArray x = embed(tokens);
+            for (int i = 0; i < blocks.size(); i++) {
+                int layer = i;
+                x = blocks.get(i).forwardBatch(x, caches.stream().map(c -> c.layer(layer)).toList());
+            }
+            return scope.keep(logits(x).squeeze(1));
+        }
+    }
+
+    /**
+     * Потоковая генерация продолжения промпта.
+     * Каждый шаг проецирует на словарь только последнюю позицию и сэмплирует на стороне тензоров,
+     * в JVM возвращается лишь номер выбранного токена.
+     * @param manager Менеджер, от которого порождаются кэш и временные тензоры шагов.
+     * @param prompt Токены промпта, не пустой массив.
+     * @return Итератор сгенерированных токенов; закрывать, если он не был исчерпан.
+     */
+    public TokenStream generate(NDManager manager, long[] prompt, GenerationParams params) {
+        return generate(manager, prompt, params, null);
+    }
+
+    /**
+     * То же, что {@link #generate(NDManager, long[], GenerationParams)}, но prefill
+     * переиспользует общий префикс из prefixCache и пополняет его.
+     */
+    public TokenStream generate(NDManager manager, long[] prompt, GenerationParams params, PrefixCache prefixCache) {
+        return new TokenStream(this, manager, prompt, params, prefixCache);
+    }
+
+    /**
+     * Черновая модель для спекулятивного декодирования: первые numBlocks блоков этой модели
+     * с ее же эмбеддингами, финальной нормализацией и LM head. Веса общие, память не растет.
+     */
+    public GemmaModel truncated(int numBlocks) {
+        if (numBlocks <= 0 || numBlocks > blocks.size()) {
+            throw new IllegalArgumentException("numBlocks must be in [1, " + blocks.size() + "]");
+        }
+        return new GemmaModel(embedding, blocks.subList(0, numBlocks), finalNorm, outputLayer);
+    }
+
+    /**
+     * Спекулятивная генерация одной последовательности: draft предлагает numDraftTokens токенов,
+     * эта модель проверяет их одним проходом. Распределение результата то же, что у
+     * {@link #generate(NDManager, long[], GenerationParams)}.
+     * @param draft Черновая модель с тем же словарем, например {@link #truncated}.
+     */
+    public SpeculativeDecoder generateSpeculative(NDManager manager, long[] prompt, GenerationParams params,
+                                                  GemmaModel draft, int numDraftTokens) {
+        return new SpeculativeDecoder(this, draft, manager, prompt, params, numDraftTokens);
+    }
+
+    /**
+     * Создает пустой K/V кэш под количество блоков этой модели.
+     */
+    public KVCache newCache(NDManager manager) {
+        return new KVCache(manager, blocks.size());
+    }
+
+    /**
+     * Создает общий кэш префиксов под количество блоков этой модели.
+     * @param blockSize Гранулярность префиксов в токенах.
+     * @param maxBytes Бюджет памяти под K/V префиксов.
+     */
+    public PrefixCache newPrefixCache(NDManager manager, int blockSize, long maxBytes) {
+        return new PrefixCache(manager, blocks.size(), blockSize, maxBytes);
     }
 
     // --- Тестовый блок для проверки всей архитектуры ---
@@ -59,11 +333,10 @@ public class GemmaModel {
             List<TransformerBlock> blocks = List.of(block1, block2);
 
             // 3. Final Layers
-            LayerNorm finalNorm = new LayerNorm(manager.ones(new Shape(embedDim)), manager.zeros(new Shape(embedDim)), 1e-5f);
-            LinearLayer outputLayer = new LinearLayer(manager.randomNormal(new Shape(vocabSize, embedDim)), null);
-            
-            // --- Собираем модель ---
-            GemmaModel model = new GemmaModel(embedding, blocks, finalNorm, outputLayer);
+            RMSNorm finalNorm = new RMSNorm(manager.zeros(new Shape(embedDim)), 1e-6f);
+
+            // --- Собираем модель: LM head связан с эмбеддингами, как у Gemma ---
+            GemmaModel model = new GemmaModel(embedding, blocks, finalNorm);
             System.out.println("Model assembled successfully with " + numBlocks + " blocks.");
 
             // --- Создаем фейковый вход ---
@@ -85,24 +358,58 @@ public class GemmaModel {
             } else {
                 System.err.println("\nShape test FAILED!");
             }
+
+            // --- Инкрементальное декодирование через K/V кэш ---
+            try (KVCache cache = model.newCache(manager)) {
+                model.forward(inputTokens, cache);
+                NDArray next = manager.create(new long[]{42}, new Shape(batchSize, 1));
+                NDArray stepLogits = model.forwardStep(next, cache);
+                System.out.println("\nStep logits shape: " + stepLogits.getShape() + ", cached positions: " + cache.length());
+            }
+
+            // --- Заполнение кэша кусками дает те же логиты, что и один проход ---
+            try (KVCache whole = model.newCache(manager); KVCache chunked = model.newCache(manager)) {
+                NDArray expected = model.forwardLast(inputTokens, whole);
+                NDArray actual = model.prefill(inputTokens, chunked, 2);
+                System.out.println("\nChunked prefill max abs difference (should be ~0): "
+                        + expected.sub(actual).abs().max().getFloat());
+            }
+
+            // --- Общий префикс: второй запрос восстанавливает K/V вместо prefill ---
+            try (PrefixCache prefixCache = model.newPrefixCache(manager, 2, 1L << 20);
+                 KVCache first = model.newCache(manager); KVCache second = model.newCache(manager)) {
+                long[] prompt = {10, 25, 5, 78, 99};
+                NDArray expected = model.prefill(manager, prompt, first, prefixCache);
+                NDArray actual = model.prefill(manager, prompt, second, prefixCache);
+                System.out.println("\nPrefix cache: reused " + prefixCache.reusedTokens() + " tokens, "
+                        + prefixCache.bytes() + " bytes, max abs difference (should be ~0): "
+                        + expected.sub(actual).abs().max().getFloat());
+            }
+
+            // --- Потоковая генерация ---
+            GenerationParams params = GenerationParams.sampling(8, 0.8f, 20, 0.9f).withSeed(1);
+            try (TokenStream stream = model.generate(manager, new long[]{10, 25, 5}, params)) {
+                StringBuilder generated = new StringBuilder();
+                stream.forEachRemaining((long token) -> generated.append(token).append(' '));
+                System.out.println("\nGenerated tokens: " + generated);
+            }
+
+            // --- Метрики: время по участкам и блокам ---
+            Metrics.reset();
+            try (TokenStream stream = model.generate(manager, new long[]{10, 25, 5}, GenerationParams.greedy(4))) {
+                stream.forEachRemaining((long token) -> { });
+            }
+            System.out.println("\n" + Metrics.registry().snapshot().format());
+            Metrics.disable();
+
+            // --- Память: после серии проходов удерживаемый объем не должен расти ---
+            long before = NativeMemoryStats.retainedBytes(manager);
+            for (int i = 0; i < 10; i++) {
+                model.forward(inputTokens).close();
+            }
+            System.out.println("\nRetained bytes before/after 10 passes: " + before + " / "
+                    + NativeMemoryStats.retainedBytes(manager));
+            System.out.println("Scope stats: " + NativeMemoryStats.snapshot());
         }
     }
 }
-
-/**
- * Вспомогательный класс, чтобы не загромождать main метод.
- */
-class TestUtils {
-    public static TransformerBlock createFakeTransformerBlock(NDManager manager, int embedDim, int numHeads, int ffnHiddenDim) {
-        LinearLayer q_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
-        LinearLayer k_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
-        LinearLayer v_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
-        LinearLayer o_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
-        MultiHeadAttention attention = new MultiHeadAttention(embedDim, numHeads, q_proj, k_proj, v_proj, o_proj);
-        LayerNorm norm1 = new LayerNorm(manager.ones(new Shape(embedDim)), manager.zeros(new Shape(embedDim)), 1e-5f);
-        LayerNorm norm2 = new LayerNorm(manager.ones(new Shape(embedDim)), manager.zeros(new Shape(embedDim)), 1e-5f);
-        LinearLayer ffn1 = new LinearLayer(manager.randomNormal(new Shape(ffnHiddenDim, embedDim)), null);
-        LinearLayer ffn2 = new LinearLayer(manager.randomNormal(new Shape(embedDim, ffnHiddenDim)), null);
-        return new TransformerBlock(attention, norm1, norm2, ffn1, ffn2);
-    }
-}
\ No newline at end of file
@@ -0,0 +1,45 @@
+package io.github.manjago.javastone.model;
+
+/**
+ * Параметры генерации одной последовательности.
+ * @param maxNewTokens Максимум сгенерированных токенов.
+ * @param temperature Температура; 0 означает жадный выбор (argmax).
+ * @param topK Сколько самых вероятных токенов оставить; 0 — без ограничения.
+ * @param topP Порог накопленной вероятности (nucleus sampling); 1 — без ограничения.
+ * @param stopTokenId Токен, на котором генерация завершается; {@link #NO_STOP_TOKEN} — не задан.
+ * @param seed Зерно генератора случайных чисел сэмплера.
+ */
+public record GenerationParams(int maxNewTokens, float temperature, int topK, float topP,
+                               long stopTokenId, long seed) {
+
+    public static final long NO_STOP_TOKEN = -1;
+
+    public GenerationParams {
+        if (maxNewTokens <= 0) {
+            throw new IllegalArgumentException("maxNewTokens must be positive");
+        }
+        if (temperature < 0 || topK < 0 || topP <= 0 || topP > 1) {
+            throw new IllegalArgumentException("Expected temperature >= 0, topK >= 0 and topP in (0, 1]");
+        }
+    }
+
+    public static GenerationParams greedy(int maxNewTokens) {
+        return new GenerationParams(maxNewTokens, 0f, 0, 1f, NO_STOP_TOKEN, 0);
+    }
+
+    public static GenerationParams sampling(int maxNewTokens, float temperature, int topK, float topP) {
+        return new GenerationParams(maxNewTokens, temperature, topK, topP, NO_STOP_TOKEN, System.nanoTime());
+    }
+
+    public GenerationParams withStopToken(long tokenId) {
+        return new GenerationParams(maxNewTokens, temperature, topK, topP, tokenId, seed);
+    }
+
+    public GenerationParams withSeed(long value) {
+        return new GenerationParams(maxNewTokens, temperature, topK, topP, stopTokenId, value);
+    }
+
+    public boolean isGreedy() {
+        return temperature == 0 || topK == 1;
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+
+/**
+ * Кэш ключей и значений (K/V) одной последовательности для всех слоев модели.
+ * Позволяет при генерации проецировать только новый токен, а не всю историю.
+ * Тензоры кэша живут в собственном под-менеджере и освобождаются при close().
+ */
+public class KVCache implements AutoCloseable {
+
+    private final NDManager manager;
+    private final LayerCache[] layers;
+
+    /**
+     * @param parent Менеджер, от которого порождается под-менеджер кэша.
+     * @param numLayers Количество трансформерных блоков в модели.
+     */
+    public KVCache(NDManager parent, int numLayers) {
+        this.manager = parent.newSubManager();
+        this.layers = new LayerCache[numLayers];
+        for (int i = 0; i < numLayers; i++) {
+            layers[i] = new LayerCache(manager);
+        }
+    }
+
+    public LayerCache layer(int index) {
+        return layers[index];
+    }
+
+    public int numLayers() {
+        return layers.length;
+    }
+
+    /**
+     * @return Количество позиций, уже записанных в кэш.
+     */
+    public long length() {
+        return layers.length == 0 ? 0 : layers[0].length();
+    }
+
+    /**
+     * Отбрасывает позиции начиная с length во всех слоях, например отвергнутые
+     * черновые токены спекулятивного декодирования.
+     */
+    public void truncate(long length) {
+        for (LayerCache layer : layers) {
+            layer.truncate(length);
+        }
+    }
+
+    @Override
+    public void close() {
+        manager.close();
+    }
+
+    /**
+     * K/V одного слоя. Shape ключей и значений: (batch_size, num_kv_heads, cached_len, head_dim)
+     */
+    public static class LayerCache {
+
+        private final NDManager manager;
+        private NDArray keys;
+        private NDArray values;
+
+        LayerCache(NDManager manager) {
+            this.manager = manager;
+        }
+
+        /**
+         * Дописывает новые позиции в конец кэша. Кэш хранит собственные копии, а k и v
+         * закрываются: после вызова используются {@link #keys()} и {@link #values()}.
+         * @param k Новые ключи. Shape: (batch_size, num_kv_heads, new_len, head_dim)
+         * @param v Новые значения. Shape: (batch_size, num_kv_heads, new_len, head_dim)
+         */
+        public void append(NDArray k, NDArray v) {
+            keys = merge(keys, k);
+            values = merge(values, v);
+        }
+
+        private NDArray merge(NDArray cached, NDArray fresh) {
+            // fresh обычно view над выходом объединенной проекции q/k/v: без копии кэш удерживал бы
+            // весь этот буфер, вместе с Q, до конца последовательности
+            NDArray merged = cached == null ? fresh.duplicate() : cached.concat(fresh, 2);
+            merged.attach(manager);
+            fresh.close();
+            if (cached != null) {
+                cached.close();
+            }
+            return merged;
+        }
+
+        /**
+         * Оставляет первые length позиций. Оставшаяся часть — view над прежним буфером,
+         * память отброшенного хвоста освобождается при следующем {@link #append}.
+         */
+        public void truncate(long length) {
+            if (length < 0 || length > length()) {
+                throw new IllegalArgumentException("Cannot truncate cache of length " + length() + " to " + length);
+            }
+            if (length == length()) {
+                return;
+            }
+            keys = slice(keys, length);
+            values = slice(values, length);
+        }
+
+        private static NDArray slice(NDArray cached, long length) {
+            NDArray kept = length == 0 ? null : cached.get(new NDIndex(":, :, :{}", length));
+            cached.close();
+            return kept;
+        }
+
+        public NDArray keys() {
+            return keys;
+        }
+
+        public NDArray values() {
+            return values;
+        }
+
+        public long length() {
+            return keys == null ? 0 : keys.getShape().get(2);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package io.github.manjago.javastone.model;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.backend.Backends;
 
 /**
  * Реализация Layer Normalization.
@@ -26,17 +27,10 @@ public class LayerNorm {
     }
 
     public NDArray forward(NDArray input) {
-        // 1. & 2. Рассчитываем среднее и дисперсию вдоль последней оси (оси фичей)
-        // new int[]{-1} означает "последняя ось"
-        // true (keepDims) сохраняет размерность для корректного вычитания (broadcasting)
-        NDArray mean = input.mean(new int[]{-1}, true);
-        NDArray variance = input.sub(mean).pow(2).mean(new int[]{-1}, true);
-
-        // 3. Нормализуем
-        NDArray normalized = input.sub(mean).div(variance.add(epsilon).sqrt());
-
-        // 4. Масштабируем и сдвигаем
-        return normalized.mul(gamma).add(beta);
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            // Среднее и дисперсия по последней оси, нормализация, затем масштаб и сдвиг
+            return scope.keep(Backends.current().layerNorm(input, gamma, beta, epsilon));
+        }
     }
 
     // --- Тестовый блок для проверки ---
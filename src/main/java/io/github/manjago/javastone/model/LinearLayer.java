@@ -1,8 +1,12 @@
 package io.github.manjago.javastone.model;
 
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.backend.Backends;
 
 /**
  * Реализация линейного (полносвязного) слоя нейронной сети.
@@ -11,18 +15,88 @@ import ai.djl.ndarray.types.Shape;
 public class LinearLayer {
 
     private final NDArray weight;
+    private final NDArray weightT; // view weight^T, создается один раз, а не на каждый forward
     private final NDArray bias;
 
     /**
      * Конструктор слоя.
-     * @param weight Матрица весов. Shape: (output_features, input_features)
+     * @param weight Матрица весов. Shape: (output_features, input_features).
+     *               FLOAT32, BFLOAT16 или FLOAT16; накопление всегда в FLOAT32.
      * @param bias Вектор смещения. Shape: (output_features). Может быть null.
      */
     public LinearLayer(NDArray weight, NDArray bias) {
+        this(weight, weight == null ? null : weight.transpose(), bias);
+    }
+
+    private LinearLayer(NDArray weight, NDArray weightT, NDArray bias) {
         this.weight = weight;
+        this.weightT = weightT;
         this.bias = bias;
     }
 
+    /**
+     * Слой из весов, уже хранящихся транспонированными, в раскладке, которую потребляет
+     * {@link io.github.manjago.javastone.backend.ComputeBackend#linear} (например, из снимка модели):
+     * weightT используется как есть, а view weight нужен лишь для формы и {@link #concat}.
+     * @param weightT Shape: (input_features, output_features)
+     */
+    public static LinearLayer fromTransposed(NDArray weightT, NDArray bias) {
+        return new LinearLayer(weightT.transpose(), weightT, bias);
+    }
+
+    /**
+     * LM head со связанными весами: матрица эмбеддингов (vocab_size, embed_dim) используется
+     * как веса проекции на словарь без копирования — один буфер обслуживает и выборку строк,
+     * и умножение матриц.
+     */
+    public static LinearLayer tiedTo(EmbeddingLayer embedding) {
+        return new LinearLayer(embedding.getWeight(), null);
+    }
+
+    /**
+     * Объединяет слои с общим входом в один: веса склеиваются по выходным признакам,
+     * и вместо нескольких умножений матриц выполняется одно, большее (q/k/v, gate/up).
+     * Выход объединенного слоя — выходы исходных подряд по последней оси.
+     * Веса копируются; исходные слои остаются валидными.
+     */
+    public static LinearLayer concat(LinearLayer... layers) {
+        NDList weights = new NDList();
+        NDList biases = new NDList();
+        boolean hasBias = false;
+        for (LinearLayer layer : layers) {
+            if (layer.weight == null) {
+                throw new IllegalArgumentException("Only float layers can be merged, got " + layer.getClass().getSimpleName());
+            }
+            weights.add(layer.weight);
+            hasBias |= layer.bias != null;
+        }
+        NDArray bias = null;
+        if (hasBias) {
+            // Слоям без смещения соответствуют нули
+            NDList zeros = new NDList();
+            for (LinearLayer layer : layers) {
+                if (layer.bias != null) {
+                    biases.add(layer.bias);
+                } else {
+                    NDArray zero = layer.weight.getManager().zeros(new Shape(layer.weight.getShape().get(0)));
+                    zeros.add(zero);
+                    biases.add(zero);
+                }
+            }
+            bias = NDArrays.concat(biases, 0);
+            zeros.close();
+        }
+        return new LinearLayer(NDArrays.concat(weights, 0), bias);
+    }
+
+    /**
+     * Конструктор для наследников, которые хранят веса в собственном представлении
+     * (например, квантованном) и переопределяют forward.
+     */
+    protected LinearLayer(NDArray bias) {
+        this(null, bias);
+    }
+
     /**
      * Прямой проход через слой.
      * @param input Входной тензор. Shape: (batch_size, input_features)
@@ -30,9 +104,15 @@ public class LinearLayer {
      */
     public NDArray forward(NDArray input) {
         // Выполняем матричное умножение: input.matMul(weight.transpose())
-        NDArray output = input.matMul(weight.transpose());
+        NDArray output = Backends.current().linear(input, weightT);
+        return addBias(output);
+    }
+
+    /**
+     * Добавляет смещение, если оно есть.
+     */
+    protected NDArray addBias(NDArray output) {
         if (bias != null) {
-            // И добавляем смещение, если оно есть
             output = output.add(bias);
         }
         return output;
@@ -70,6 +150,12 @@ public class LinearLayer {
 
             System.out.println("Result shape: " + result.getShape()); // Ожидаем (2, 5)
             System.out.println("Result data:\n" + result);
+
+            // Те же веса в bf16: памяти вдвое меньше, накопление по-прежнему в FLOAT32
+            LinearLayer half = new LinearLayer(fakeWeights.toType(DataType.BFLOAT16, false), fakeBias);
+            NDArray halfResult = half.forward(input);
+            System.out.println("bf16 result type: " + halfResult.getDataType()
+                    + ", max abs diff vs fp32: " + halfResult.sub(result).abs().max().getFloat());
             System.out.println("Test successful!");
         }
     }
@@ -1,54 +1,405 @@
 package io.github.manjago.javastone.model;
 
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.backend.Backends;
+import java.util.List;
 
 public class MultiHeadAttention {
 
+    /**
+     * Размер блока запросов и ключей в поблочном внимании.
+     * Длинные последовательности никогда не материализуют матрицу (seq_len, seq_len) целиком.
+     */
+    static final int ATTENTION_BLOCK = 512;
+
     private final int numHeads;
+    private final int numKvHeads;
+    private final int groups; // Количество голов запроса на одну голову K/V
     private final int headDim;
-    private final LinearLayer q_proj;
-    private final LinearLayer k_proj;
-    private final LinearLayer v_proj;
+    private final RotaryEmbedding rope; // null — без позиционного кодирования
+    private final LinearLayer qkv_proj; // q_proj, k_proj и v_proj одним слоем: выход [q, k, v] по последней оси
     private final LinearLayer o_proj;
 
+    /**
+     * Классическое multi-head внимание: у K и V столько же голов, сколько у Q.
+     * Без позиционного кодирования.
+     */
     public MultiHeadAttention(int embedDim, int numHeads,
                               LinearLayer q_proj, LinearLayer k_proj,
                               LinearLayer v_proj, LinearLayer o_proj) {
-        if (embedDim % numHeads != 0) {
-            throw new IllegalArgumentException("embedDim must be divisible by numHeads");
+        this(numHeads, numHeads, headDim(embedDim, numHeads), null, q_proj, k_proj, v_proj, o_proj);
+    }
+
+    /**
+     * Grouped-query внимание без позиционного кодирования.
+     */
+    public MultiHeadAttention(int numHeads, int numKvHeads, int headDim,
+                              LinearLayer q_proj, LinearLayer k_proj,
+                              LinearLayer v_proj, LinearLayer o_proj) {
+        this(numHeads, numKvHeads, headDim, null, q_proj, k_proj, v_proj, o_proj);
+    }
+
+    /**
+     * Grouped-query внимание (GQA); numKvHeads = 1 — multi-query (MQA), как у Gemma-2B.
+     * k_proj и v_proj узкие: (num_kv_heads * head_dim, embed_dim). Каждая голова K/V обслуживает
+     * группу из numHeads / numKvHeads голов запроса и не копируется: головы запроса одной группы
+     * складываются в строки, и одно умножение матриц обрабатывает всю группу.
+     * q_proj, k_proj и v_proj объединяются в один слой (веса копируются).
+     * @param rope Позиционное кодирование Q и K, общее для всех слоев модели. Может быть null.
+     */
+    public MultiHeadAttention(int numHeads, int numKvHeads, int headDim, RotaryEmbedding rope,
+                              LinearLayer q_proj, LinearLayer k_proj,
+                              LinearLayer v_proj, LinearLayer o_proj) {
+        this(numHeads, numKvHeads, headDim, rope, LinearLayer.concat(q_proj, k_proj, v_proj), o_proj);
+    }
+
+    /**
+     * Внимание с уже объединенной проекцией Q, K, V: одно умножение матриц вместо трех.
+     * @param qkv_proj Shape весов: ((num_heads + 2 * num_kv_heads) * head_dim, embed_dim),
+     *                 строки q_proj, затем k_proj, затем v_proj.
+     */
+    public MultiHeadAttention(int numHeads, int numKvHeads, int headDim, RotaryEmbedding rope,
+                              LinearLayer qkv_proj, LinearLayer o_proj) {
+        if (numKvHeads <= 0 || numHeads % numKvHeads != 0) {
+            throw new IllegalArgumentException("numHeads must be a multiple of numKvHeads");
         }
         this.numHeads = numHeads;
-        this.headDim = embedDim / numHeads;
-        this.q_proj = q_proj;
-        this.k_proj = k_proj;
-        this.v_proj = v_proj;
+        this.numKvHeads = numKvHeads;
+        this.groups = numHeads / numKvHeads;
+        this.headDim = headDim;
+        this.rope = rope;
+        this.qkv_proj = qkv_proj;
         this.o_proj = o_proj;
     }
 
+    private static int headDim(int embedDim, int numHeads) {
+        if (embedDim % numHeads != 0) {
+            throw new IllegalArgumentException("embedDim must be divisible by numHeads");
+        }
+        return embedDim / numHeads;
+    }
+
     public NDArray forward(NDArray input) {
+        return forward(input, null);
+    }
+
+    /**
+     * Прямой проход с использованием K/V кэша.
+     * Проецируются только новые позиции из input, внимание считается по всему кэшу.
+     * @param input Новые позиции. Shape: (batch_size, new_len, embed_dim)
+     * @param cache Кэш слоя. Может быть null, тогда кэш не используется.
+     */
+    public NDArray forward(NDArray input, KVCache.LayerCache cache) {
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            return scope.keep(attend(input, cache, scope.getManager()));
+        }
+    }
+
+    private NDArray attend(NDArray input, KVCache.LayerCache cache, NDManager scope) {
         Shape inputShape = input.getShape();
         long batchSize = inputShape.get(0);
         long seqLen = inputShape.get(1);
 
-        NDArray q = q_proj.forward(input);
-        NDArray k = k_proj.forward(input);
-        NDArray v = v_proj.forward(input);
+        // Новые позиции продолжают кэш: ключи в нем уже повернуты на свои позиции
+        long pastLen = cache != null ? cache.length() : 0;
+        NDList qkv = project(input, RotaryEmbedding.positions(pastLen, seqLen));
+        NDArray q = qkv.get(0);
+        NDArray k = qkv.get(1);
+        NDArray v = qkv.get(2);
 
-        q = q.reshape(batchSize, seqLen, numHeads, headDim).transpose(0, 2, 1, 3);
-        k = k.reshape(batchSize, seqLen, numHeads, headDim).transpose(0, 2, 1, 3);
-        v = v.reshape(batchSize, seqLen, numHeads, headDim).transpose(0, 2, 1, 3);
+        if (cache != null) {
+            cache.append(k, v);
+            k = cache.keys();
+            v = cache.values();
+        }
 
-        NDArray scores = q.matMul(k.transpose(0, 1, 3, 2));
+        NDArray attentionOutput;
+        if (seqLen > 1 && pastLen + seqLen > ATTENTION_BLOCK) {
+            attentionOutput = tiledAttention(q, k, v, seqLen, pastLen, scope);
+        } else {
+            // Новые позиции не должны видеть будущие токены; одному токену видна вся история
+            NDArray allowed = seqLen > 1 ? causalMask(scope, seqLen, pastLen + seqLen, pastLen, groups) : null;
+            attentionOutput = scaledDotProduct(q, k, v, allowed, scope);
+        }
+
+        return o_proj.forward(mergeHeads(attentionOutput, batchSize, seqLen));
+    }
+
+    /**
+     * Один шаг декодирования для пакета последовательностей разной длины.
+     * У каждой строки пакета свой кэш: ключи и значения дополняются нулями справа
+     * до самой длинной последовательности, а дополненные позиции исключаются маской.
+     * @param input Новые токены. Shape: (batch_size, 1, embed_dim)
+     * @param caches Кэши слоя, по одному на строку пакета.
+     */
+    public NDArray forwardBatch(NDArray input, List<KVCache.LayerCache> caches) {
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            return scope.keep(attendBatch(input, caches, scope.getManager()));
+        }
+    }
+
+    private NDArray attendBatch(NDArray input, List<KVCache.LayerCache> caches, NDManager scope) {
+        long batchSize = input.getShape().get(0);
+        if (input.getShape().get(1) != 1 || caches.size() != batchSize) {
+            throw new IllegalArgumentException("forwardBatch expects (batch_size, 1, embed_dim) input and one cache per row");
+        }
+
+        // Позиция нового токена каждой строки — длина ее кэша до добавления
+        long[] positions = new long[(int) batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            positions[b] = caches.get(b).length();
+        }
+        NDList qkv = project(input, positions);
+        long[] lengths = new long[(int) batchSize];
+        long maxLen = 0;
+        for (int b = 0; b < batchSize; b++) {
+            NDIndex row = new NDIndex("{}:{}", b, b + 1);
+            KVCache.LayerCache cache = caches.get(b);
+            cache.append(qkv.get(1).get(row), qkv.get(2).get(row));
+            lengths[b] = cache.length();
+            maxLen = Math.max(maxLen, lengths[b]);
+        }
+
+        NDList keys = new NDList();
+        NDList values = new NDList();
+        for (int b = 0; b < batchSize; b++) {
+            keys.add(padTo(caches.get(b).keys(), maxLen, scope));
+            values.add(padTo(caches.get(b).values(), maxLen, scope));
+        }
+        NDArray k = NDArrays.concat(keys, 0);
+        NDArray v = NDArrays.concat(values, 0);
+        k.attach(scope);
+        v.attach(scope);
+
+        // Маска (batch_size, 1, 1, max_len): позиция разрешена, если она меньше длины последовательности
+        NDArray keyPos = scope.arange((int) maxLen).reshape(1, 1, 1, maxLen);
+        NDArray allowed = keyPos.lt(scope.create(lengths).reshape(batchSize, 1, 1, 1));
+
+        NDArray attentionOutput = scaledDotProduct(qkv.get(0), k, v, allowed, scope);
+
+        return o_proj.forward(mergeHeads(attentionOutput, batchSize, 1));
+    }
+
+    /**
+     * Проекции Q, K, V, разложенные по головам.
+     * K и V: (batch_size, num_kv_heads, seq_len, head_dim).
+     * Q: (batch_size, num_kv_heads, groups * seq_len, head_dim) — головы запроса одной группы
+     * идут подряд блоками по seq_len строк, строка g * seq_len + s относится к голове kv * groups + g.
+     * Q и K поворачиваются RoPE до перестановки осей, пока позиция — отдельная ось.
+     * @param positions Абсолютные позиции входа (см. {@link RotaryEmbedding#apply}).
+     */
+    private NDList project(NDArray input, long[] positions) {
+        long batchSize = input.getShape().get(0);
+        long seqLen = input.getShape().get(1);
+
+        long queryDim = (long) numHeads * headDim;
+        long kvDim = (long) numKvHeads * headDim;
+        NDArray qkv = qkv_proj.forward(input);
+        NDArray q = qkv.get(new NDIndex("..., :{}", queryDim)).reshape(batchSize, seqLen, numHeads, headDim);
+        NDArray k = qkv.get(new NDIndex("..., {}:{}", queryDim, queryDim + kvDim))
+                .reshape(batchSize, seqLen, numKvHeads, headDim);
+        NDArray v = qkv.get(new NDIndex("..., {}:", queryDim + kvDim));
+        if (rope != null) {
+            q = rope.apply(q, positions);
+            k = rope.apply(k, positions);
+        }
+
+        q = q.reshape(batchSize, seqLen, numKvHeads, groups, headDim).transpose(0, 2, 3, 1, 4)
+                .reshape(batchSize, numKvHeads, groups * seqLen, headDim);
+        k = k.transpose(0, 2, 1, 3);
+        v = v.reshape(batchSize, seqLen, numKvHeads, headDim).transpose(0, 2, 1, 3);
+        return new NDList(q, k, v);
+    }
+
+    /**
+     * Обратное к раскладке Q: (batch_size, num_kv_heads, groups * seq_len, head_dim) -> (batch_size, seq_len, num_heads * head_dim)
+     */
+    private NDArray mergeHeads(NDArray heads, long batchSize, long seqLen) {
+        return heads.reshape(batchSize, numKvHeads, groups, seqLen, headDim).transpose(0, 3, 1, 2, 4)
+                .reshape(batchSize, seqLen, (long) numHeads * headDim);
+    }
+
+    /**
+     * softmax(q * k^T / sqrt(head_dim)) * v
+     * @param allowed Булева маска, совместимая по broadcasting со scores. Может быть null.
+     */
+    private NDArray scaledDotProduct(NDArray q, NDArray k, NDArray v, NDArray allowed, NDManager scope) {
+        NDArray keysT = k.transpose(0, 1, 3, 2);
+        // Ключи кэша принадлежат его менеджеру: view над ними переносим в область прохода
+        keysT.attach(scope);
+        NDArray scores = q.matMul(keysT);
 
         float scale = (float) (1.0 / Math.sqrt(headDim));
-        NDArray attentionWeights = scores.mul(scale).softmax(-1);
-        NDArray attentionOutput = attentionWeights.matMul(v);
+        scores = scores.mul(scale);
+        if (allowed != null) {
+            scores = NDArrays.where(allowed, scores, scope.create(Float.NEGATIVE_INFINITY));
+        }
+        NDArray attentionWeights = Backends.current().softmax(scores);
+        return attentionWeights.matMul(v);
+    }
 
-        NDArray concatenatedOutput = attentionOutput.transpose(0, 2, 1, 3).reshape(batchSize, seqLen, -1);
+    /**
+     * Каузальное внимание блоками с онлайн-softmax (как во FlashAttention).
+     * Для каждого блока запросов ключи просматриваются блоками по возрастанию позиции, при этом
+     * хранятся лишь текущий максимум m, сумма экспонент l и ненормированный выход acc:
+     * m' = max(m, max(s)), l' = l * e^(m - m') + sum(e^(s - m')), acc' = acc * e^(m - m') + e^(s - m') * v.
+     * Блоки ключей целиком правее последнего запроса пропускаются, маска строится только на диагонали.
+     * Промежуточные тензоры каждого блока освобождаются сразу, поэтому память — O(block^2), а не O(seq_len^2).
+     * @param q Shape: (batch_size, num_kv_heads, groups * query_len, head_dim)
+     * @param k Ключи всех позиций, включая кэш. Shape: (batch_size, num_kv_heads, offset + query_len, head_dim)
+     * @param offset Абсолютная позиция первого запроса.
+     */
+    private NDArray tiledAttention(NDArray q, NDArray k, NDArray v, long queryLen, long offset, NDManager scope) {
+        long batchSize = q.getShape().get(0);
+        float scale = (float) (1.0 / Math.sqrt(headDim));
+        NDArray grouped = q.reshape(batchSize, numKvHeads, groups, queryLen, headDim);
+        NDList outputs = new NDList();
+        for (long qs = 0; qs < queryLen; qs += ATTENTION_BLOCK) {
+            long qe = Math.min(qs + ATTENTION_BLOCK, queryLen);
+            NDArray qBlock = grouped.get(new NDIndex(":, :, :, {}:{}", qs, qe))
+                    .reshape(batchSize, numKvHeads, groups * (qe - qs), headDim).mul(scale);
+            long keyEnd = offset + qe;
+            NDArray m = null;
+            NDArray l = null;
+            NDArray acc = null;
+            for (long ks = 0; ks < keyEnd; ks += ATTENTION_BLOCK) {
+                long ke = Math.min(ks + ATTENTION_BLOCK, keyEnd);
+                try (NDManager tile = scope.newSubManager()) {
+                    qBlock.tempAttach(tile);
+                    if (m != null) {
+                        // Состояние прошлого шага больше не нужно после этого блока
+                        m.attach(tile);
+                        l.attach(tile);
+                        acc.attach(tile);
+                    }
+                    // Срезы ключей кэша создаются в его менеджере: переносим их в блок
+                    NDArray kBlock = k.get(new NDIndex(":, :, {}:{}", ks, ke));
+                    NDArray vBlock = v.get(new NDIndex(":, :, {}:{}", ks, ke));
+                    kBlock.attach(tile);
+                    vBlock.attach(tile);
+
+                    NDArray scores = qBlock.matMul(kBlock.transpose(0, 1, 3, 2));
+                    if (ke - 1 > offset + qs) {
+                        NDArray allowed = causalMask(tile, qe - qs, ke - ks, offset + qs - ks, groups);
+                        scores = NDArrays.where(allowed, scores, tile.create(Float.NEGATIVE_INFINITY));
+                    }
+                    // Первый блок ключей содержит позицию 0, видимую всем запросам, поэтому m конечен
+                    NDArray blockMax = scores.max(new int[]{-1}, true);
+                    NDArray mNew = m == null ? blockMax : m.maximum(blockMax);
+                    NDArray p = scores.sub(mNew).exp();
+                    NDArray lNew = p.sum(new int[]{-1}, true);
+                    NDArray accNew = p.matMul(vBlock);
+                    if (m != null) {
+                        NDArray correction = m.sub(mNew).exp();
+                        lNew = l.mul(correction).addi(lNew);
+                        accNew = acc.mul(correction).addi(accNew);
+                    }
+                    mNew.attach(scope);
+                    lNew.attach(scope);
+                    accNew.attach(scope);
+                    m = mNew;
+                    l = lNew;
+                    acc = accNew;
+                }
+            }
+            outputs.add(acc.div(l).reshape(batchSize, numKvHeads, groups, qe - qs, headDim));
+            qBlock.close();
+            m.close();
+            l.close();
+            acc.close();
+        }
+        NDArray output = NDArrays.concat(outputs, 3);
+        output.attach(scope);
+        return output.reshape(batchSize, numKvHeads, groups * queryLen, headDim);
+    }
+
+    private static NDArray padTo(NDArray cached, long length, NDManager scope) {
+        Shape shape = cached.getShape();
+        if (shape.get(2) == length) {
+            return cached;
+        }
+        NDArray padding = scope.zeros(new Shape(shape.get(0), shape.get(1), length - shape.get(2), shape.get(3)),
+                cached.getDataType());
+        NDArray padded = cached.concat(padding, 2);
+        padded.attach(scope);
+        return padded;
+    }
+
+    /**
+     * Маска, запрещающая позиции запроса i смотреть на ключи с абсолютной позицией больше offset + i.
+     * Позиции запроса повторяются для каждой из groups голов группы (раскладка строк Q).
+     * @return Shape: (groups * query_len, key_len)
+     */
+    private static NDArray causalMask(NDManager manager, long queryLen, long keyLen, long offset, int groups) {
+        NDArray queryPos = manager.arange((int) queryLen).add(offset);
+        if (groups > 1) {
+            queryPos = queryPos.tile(groups);
+        }
+        queryPos = queryPos.expandDims(1);
+        NDArray keyPos = manager.arange((int) keyLen).expandDims(0);
+        return keyPos.lte(queryPos);
+    }
+
+    // --- Тестовый блок: поблочное внимание и GQA должны совпадать с прямым MHA, RoPE — не зависеть от кэша ---
+    public static void main(String[] args) {
+        System.out.println("--- Testing tiled grouped-query attention ---");
+
+        try (NDManager manager = NDManager.newBaseManager()) {
+            int embedDim = 16;
+            int numHeads = 4;
+            int numKvHeads = 2;
+            int headDim = 4;
+            long seqLen = ATTENTION_BLOCK * 2 + 37;
+            NDArray wq = manager.randomNormal(new Shape(numHeads * headDim, embedDim));
+            NDArray wk = manager.randomNormal(new Shape(numKvHeads * headDim, embedDim));
+            NDArray wv = manager.randomNormal(new Shape(numKvHeads * headDim, embedDim));
+            NDArray wo = manager.randomNormal(new Shape(embedDim, numHeads * headDim));
+            RotaryEmbedding rope = new RotaryEmbedding(manager, headDim, (int) seqLen, RotaryEmbedding.DEFAULT_THETA);
+            MultiHeadAttention gqa = new MultiHeadAttention(numHeads, numKvHeads, headDim, rope,
+                    new LinearLayer(wq, null), new LinearLayer(wk, null),
+                    new LinearLayer(wv, null), new LinearLayer(wo, null));
 
-        return o_proj.forward(concatenatedOutput);
+            // Эталон: обычный MHA, где каждая голова K/V явно повторена для своей группы
+            int groups = numHeads / numKvHeads;
+            MultiHeadAttention mha = new MultiHeadAttention(numHeads, numHeads, headDim, rope,
+                    new LinearLayer(wq, null),
+                    new LinearLayer(wk.reshape(numKvHeads, headDim, embedDim).repeat(0, groups)
+                            .reshape(numHeads * headDim, embedDim), null),
+                    new LinearLayer(wv.reshape(numKvHeads, headDim, embedDim).repeat(0, groups)
+                            .reshape(numHeads * headDim, embedDim), null),
+                    new LinearLayer(wo, null));
+
+            NDArray input = manager.randomNormal(new Shape(1, seqLen, embedDim));
+            NDArray tiled = gqa.forward(input);
+
+            NDArray reference;
+            try (ForwardScope scope = ForwardScope.open(input)) {
+                NDList qkv = mha.project(input, RotaryEmbedding.positions(0, seqLen));
+                NDArray allowed = causalMask(scope.getManager(), seqLen, seqLen, 0, 1);
+                NDArray heads = mha.scaledDotProduct(qkv.get(0), qkv.get(1), qkv.get(2), allowed,
+                        scope.getManager());
+                reference = scope.keep(mha.o_proj.forward(mha.mergeHeads(heads, 1, seqLen)));
+            }
+            float maxError = tiled.sub(reference).abs().max().getFloat();
+            System.out.println("Output shape: " + tiled.getShape());
+            System.out.println("Max abs difference with full MHA (should be ~0): " + maxError);
+
+            // Кэш GQA хранит только головы K/V; шаг декодирования со смещением позиций
+            // должен дать то же, что последняя позиция полного прохода
+            try (KVCache cache = new KVCache(manager, 1)) {
+                gqa.forward(input.get(new NDIndex(":, :8, :")), cache.layer(0));
+                System.out.println("Cached keys shape (num_kv_heads = " + numKvHeads + "): "
+                        + cache.layer(0).keys().getShape());
+                NDArray step = gqa.forward(input.get(new NDIndex(":, 8:9, :")), cache.layer(0));
+                NDArray full = gqa.forward(input.get(new NDIndex(":, :9, :"))).get(new NDIndex(":, 8:9, :"));
+                System.out.println("Cached step vs full pass with RoPE (should be ~0): "
+                        + step.sub(full).abs().max().getFloat());
+            }
+        }
     }
-    
-    // main метод для теста можно пока убрать, он нам больше не нужен
-}
\ No newline at end of file
+}
@@ -0,0 +1,70 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import io.github.manjago.javastone.metrics.Metrics;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счетчики нативной памяти, которую занимают тензоры прямых проходов.
+ * Заполняются {@link ForwardScope}; размер тензора считается как
+ * количество элементов * размер типа (для view это оценка сверху).
+ */
+public final class NativeMemoryStats {
+
+    /**
+     * @param scopes Сколько областей ForwardScope закрыто.
+     * @param freedBytes Сколько байт промежуточных тензоров освобождено всего.
+     * @param peakScopeBytes Максимальный объем промежуточных тензоров в одной области.
+     * @param escapedBytes Сколько байт вышло из областей в виде результатов.
+     */
+    public record Snapshot(long scopes, long freedBytes, long peakScopeBytes, long escapedBytes) {}
+
+    private static final LongAdder SCOPES = new LongAdder();
+    private static final LongAdder FREED_BYTES = new LongAdder();
+    private static final LongAdder ESCAPED_BYTES = new LongAdder();
+    private static final AtomicLong PEAK_SCOPE_BYTES = new AtomicLong();
+
+    private NativeMemoryStats() {
+    }
+
+    public static long bytesOf(NDArray array) {
+        return array.getShape().size() * array.getDataType().getNumOfBytes();
+    }
+
+    /**
+     * Сколько байт сейчас удерживают тензоры менеджера (включая под-менеджеры).
+     * Для корневого менеджера модели это веса + K/V кэши + все, что не было освобождено:
+     * при отсутствии утечек значение между запросами остается постоянным.
+     */
+    public static long retainedBytes(NDManager manager) {
+        long total = 0;
+        for (NDArray array : manager.getManagedArrays()) {
+            total += bytesOf(array);
+        }
+        return total;
+    }
+
+    static void recordScope(long freedBytes) {
+        SCOPES.increment();
+        FREED_BYTES.add(freedBytes);
+        PEAK_SCOPE_BYTES.accumulateAndGet(freedBytes, Math::max);
+        Metrics.recordNativeBytes(freedBytes);
+    }
+
+    static void recordEscape(long bytes) {
+        ESCAPED_BYTES.add(bytes);
+    }
+
+    public static Snapshot snapshot() {
+        return new Snapshot(SCOPES.sum(), FREED_BYTES.sum(), PEAK_SCOPE_BYTES.get(), ESCAPED_BYTES.sum());
+    }
+
+    public static void reset() {
+        SCOPES.reset();
+        FREED_BYTES.reset();
+        ESCAPED_BYTES.reset();
+        PEAK_SCOPE_BYTES.set(0);
+    }
+}
@@ -0,0 +1,272 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Общий кэш K/V для повторяющихся префиксов промптов (системный промпт, few-shot примеры).
+ * Префиксы хранятся деревом по блокам из blockSize токенов: узел — один блок, ключ узла —
+ * токены блока, поэтому общие начала разных промптов хранятся один раз.
+ * Запрос, чей промпт начинается с сохраненного префикса, копирует его K/V в свой кэш
+ * и выполняет prefill только для остатка.
+ * <p>
+ * Объем ограничен бюджетом maxBytes: при превышении вытесняются давно не использованные листья.
+ * Потокобезопасен: структура дерева меняется под блокировкой, а чтение тензоров идет вне ее —
+ * узлы на время чтения закреплены счетчиком ссылок и не вытесняются.
+ */
+public class PrefixCache implements AutoCloseable {
+
+    private final NDManager manager;
+    private final int numLayers;
+    private final int blockSize;
+    private final long maxBytes;
+    private final Node root = new Node(null, null, null, null);
+    private long totalBytes;
+    private long clock;
+    private long hits;
+    private long reusedTokens;
+
+    /**
+     * @param parent Менеджер, от которого порождается под-менеджер кэша.
+     * @param numLayers Количество трансформерных блоков модели.
+     * @param blockSize Гранулярность префиксов в токенах.
+     * @param maxBytes Бюджет памяти под K/V префиксов.
+     */
+    public PrefixCache(NDManager parent, int numLayers, int blockSize, long maxBytes) {
+        if (blockSize <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("blockSize and maxBytes must be positive");
+        }
+        this.manager = parent.newSubManager();
+        this.numLayers = numLayers;
+        this.blockSize = blockSize;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Заполняет пустой кэш последовательности самым длинным сохраненным префиксом промпта.
+     * Последний токен промпта никогда не восстанавливается: для него нужны логиты.
+     * @param prompt Токены промпта одной последовательности.
+     * @param cache Пустой кэш (batch_size = 1).
+     * @return Сколько токенов промпта уже в кэше; prefill нужен начиная с этой позиции.
+     */
+    public int restore(long[] prompt, KVCache cache) {
+        if (cache.length() != 0) {
+            throw new IllegalArgumentException("Prefix can only be restored into an empty cache");
+        }
+        List<Node> path = pin(prompt, (prompt.length - 1) / blockSize);
+        if (path.isEmpty()) {
+            return 0;
+        }
+        try {
+            for (int layer = 0; layer < numLayers; layer++) {
+                NDList keys = new NDList(path.size());
+                NDList values = new NDList(path.size());
+                for (Node node : path) {
+                    keys.add(node.keys[layer]);
+                    values.add(node.values[layer]);
+                }
+                // concat всегда создает новый тензор, который переходит в менеджер кэша последовательности
+                cache.layer(layer).append(NDArrays.concat(keys, 2), NDArrays.concat(values, 2));
+            }
+        } finally {
+            unpin(path);
+        }
+        int restored = path.size() * blockSize;
+        synchronized (this) {
+            hits++;
+            reusedTokens += restored;
+        }
+        return restored;
+    }
+
+    /**
+     * Сохраняет полные блоки промпта, которых еще нет в дереве.
+     * @param prompt Токены, K/V которых уже записаны в cache (в начале кэша).
+     * @param cache Кэш последовательности после prefill (batch_size = 1).
+     */
+    public void store(long[] prompt, KVCache cache) {
+        int blocks = (int) (Math.min(prompt.length, cache.length()) / blockSize);
+        List<Node> path = pin(prompt, blocks);
+        try {
+            Node parent = path.isEmpty() ? root : path.get(path.size() - 1);
+            for (int block = path.size(); block < blocks; block++) {
+                Node child = copyBlock(parent, prompt, block, cache);
+                synchronized (this) {
+                    Node existing = parent.children.get(child.key);
+                    if (existing != null) {
+                        // Другой поток успел сохранить этот блок
+                        child.close();
+                        child = existing;
+                    } else {
+                        parent.children.put(child.key, child);
+                        totalBytes += child.bytes;
+                    }
+                    child.refCount++;
+                    child.lastAccess = ++clock;
+                    path.add(child);
+                }
+                parent = child;
+            }
+        } finally {
+            unpin(path);
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    private Node copyBlock(Node parent, long[] prompt, int block, KVCache cache) {
+        int start = block * blockSize;
+        NDIndex range = new NDIndex(":, :, {}:{}", start, start + blockSize);
+        NDArray[] keys = new NDArray[numLayers];
+        NDArray[] values = new NDArray[numLayers];
+        for (int layer = 0; layer < numLayers; layer++) {
+            keys[layer] = copy(cache.layer(layer).keys(), range);
+            values[layer] = copy(cache.layer(layer).values(), range);
+        }
+        BlockKey key = new BlockKey(Arrays.copyOfRange(prompt, start, start + blockSize));
+        return new Node(parent, key, keys, values);
+    }
+
+    /**
+     * Срез кэша — view над всем его буфером, поэтому блок копируется в собственный тензор.
+     */
+    private NDArray copy(NDArray cached, NDIndex range) {
+        try (NDArray view = cached.get(range)) {
+            NDArray block = view.duplicate();
+            block.attach(manager);
+            return block;
+        }
+    }
+
+    /**
+     * Находит и закрепляет узлы совпадающего префикса (не более maxBlocks блоков).
+     */
+    private synchronized List<Node> pin(long[] prompt, int maxBlocks) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        for (int block = 0; block < maxBlocks; block++) {
+            int start = block * blockSize;
+            node = node.children.get(new BlockKey(Arrays.copyOfRange(prompt, start, start + blockSize)));
+            if (node == null) {
+                break;
+            }
+            node.refCount++;
+            node.lastAccess = ++clock;
+            path.add(node);
+        }
+        return path;
+    }
+
+    private synchronized void unpin(List<Node> path) {
+        for (Node node : path) {
+            node.refCount--;
+        }
+        evict();
+    }
+
+    /**
+     * Вытесняет незакрепленные листья в порядке давности использования, пока объем превышает бюджет.
+     * Удаление только листьев сохраняет связность дерева: лист вытесняется раньше своего родителя.
+     */
+    private void evict() {
+        while (totalBytes > maxBytes) {
+            Node victim = oldestLeaf(root, null);
+            if (victim == null) {
+                return; // все листья сейчас читаются
+            }
+            victim.parent.children.remove(victim.key);
+            totalBytes -= victim.bytes;
+            victim.close();
+        }
+    }
+
+    private static Node oldestLeaf(Node node, Node best) {
+        for (Node child : node.children.values()) {
+            if (child.children.isEmpty()) {
+                if (child.refCount == 0 && (best == null || child.lastAccess < best.lastAccess)) {
+                    best = child;
+                }
+            } else {
+                best = oldestLeaf(child, best);
+            }
+        }
+        return best;
+    }
+
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long reusedTokens() {
+        return reusedTokens;
+    }
+
+    @Override
+    public synchronized void close() {
+        root.children.clear();
+        totalBytes = 0;
+        manager.close();
+    }
+
+    /**
+     * Токены одного блока; равенство и хэш — по содержимому.
+     */
+    private record BlockKey(long[] tokens) {
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof BlockKey key && Arrays.equals(tokens, key.tokens);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(tokens);
+        }
+    }
+
+    private static final class Node {
+
+        private final Node parent;
+        private final BlockKey key;
+        private final NDArray[] keys;   // По слою: (1, num_kv_heads, block_size, head_dim)
+        private final NDArray[] values;
+        private final Map<BlockKey, Node> children = new HashMap<>();
+        private final long bytes;
+        private int refCount;
+        private long lastAccess;
+
+        Node(Node parent, BlockKey key, NDArray[] keys, NDArray[] values) {
+            this.parent = parent;
+            this.key = key;
+            this.keys = keys;
+            this.values = values;
+            long total = 0;
+            if (keys != null) {
+                for (int i = 0; i < keys.length; i++) {
+                    total += NativeMemoryStats.bytesOf(keys[i]) + NativeMemoryStats.bytesOf(values[i]);
+                }
+            }
+            this.bytes = total;
+        }
+
+        void close() {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i].close();
+                values[i].close();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.backend.Backends;
+
+/**
+ * RMS Normalization в варианте Gemma: x / sqrt(mean(x^2) + epsilon) * (1 + weight).
+ * В отличие от LayerNorm, среднее не вычитается и сдвига нет, поэтому статистика
+ * строки — одна сумма квадратов, а множитель (1 + weight) считается один раз при создании слоя.
+ */
+public class RMSNorm {
+
+    private final NDArray scale; // 1 + weight
+    private final float epsilon;
+
+    /**
+     * @param weight Вектор весов из чекпоинта Gemma. Shape: (features)
+     * @param epsilon Малое число для предотвращения деления на ноль (rms_norm_eps).
+     */
+    public RMSNorm(NDArray weight, float epsilon) {
+        this.scale = weight.add(1);
+        this.epsilon = epsilon;
+    }
+
+    public NDArray forward(NDArray input) {
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            // Одна редукция по последней оси дает обратный RMS строки, затем один проход умножения
+            return scope.keep(Backends.current().rmsNorm(input, scale, epsilon));
+        }
+    }
+
+    // --- Тестовый блок для проверки ---
+    public static void main(String[] args) {
+        System.out.println("--- Testing RMSNorm ---");
+
+        try (NDManager manager = NDManager.newBaseManager()) {
+            long features = 6;
+
+            // Нулевые веса Gemma означают единичный масштаб (1 + 0)
+            RMSNorm rmsNorm = new RMSNorm(manager.zeros(new Shape(features)), 1e-6f);
+
+            NDArray input = manager.create(new float[][]{
+                {1, 2, 3, 4, 5, 6},
+                {-100, -50, 0, 50, 100, 150}
+            });
+            System.out.println("Input data:\n" + input);
+
+            NDArray result = rmsNorm.forward(input);
+            System.out.println("\nNormalized result:\n" + result);
+
+            // Среднеквадратичное значение каждой строки результата должно быть ~1
+            NDArray resultRms = result.square().mean(new int[]{-1}).sqrt();
+            System.out.println("\nRMS of the result (should be ~1): " + resultRms);
+            System.out.println("\nTest successful!");
+        }
+    }
+}
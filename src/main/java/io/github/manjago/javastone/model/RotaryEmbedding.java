@@ -0,0 +1,89 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.backend.Backends;
+
+/**
+ * Rotary position embedding (RoPE) для Q и K.
+ * Таблицы cos и sin углов pos * theta^(-2i / head_dim) считаются один раз для всех позиций
+ * до maxPositions и общие для всех слоев модели и всех запросов: на горячем пути нет
+ * тригонометрии, только выборка строк таблицы по абсолютной позиции и поворот пар признаков
+ * одной операцией бэкенда ({@link io.github.manjago.javastone.backend.ComputeBackend#rotary}).
+ * <p>
+ * Пары — половины головы (i, i + head_dim / 2), как в реализации Gemma из transformers.
+ */
+public class RotaryEmbedding {
+
+    public static final float DEFAULT_THETA = 10000f;
+
+    private final int headDim;
+    private final int maxPositions;
+    private final NDArray cos;
+    private final NDArray sin;
+
+    /**
+     * @param manager Менеджер модели: таблицы живут столько же, сколько веса.
+     * @param maxPositions Максимальная длина контекста (max_position_embeddings).
+     * @param theta База частот (rope_theta).
+     */
+    public RotaryEmbedding(NDManager manager, int headDim, int maxPositions, float theta) {
+        if (headDim % 2 != 0) {
+            throw new IllegalArgumentException("headDim must be even: " + headDim);
+        }
+        this.headDim = headDim;
+        this.maxPositions = maxPositions;
+        int half = headDim / 2;
+        double[] inverseFrequency = new double[half];
+        for (int i = 0; i < half; i++) {
+            inverseFrequency[i] = Math.pow(theta, -2.0 * i / headDim);
+        }
+        // Углы считаются в double: у дальних позиций float теряет точность аргумента
+        float[] cosTable = new float[maxPositions * half];
+        float[] sinTable = new float[maxPositions * half];
+        for (int pos = 0; pos < maxPositions; pos++) {
+            for (int i = 0; i < half; i++) {
+                double angle = pos * inverseFrequency[i];
+                cosTable[pos * half + i] = (float) Math.cos(angle);
+                sinTable[pos * half + i] = (float) Math.sin(angle);
+            }
+        }
+        this.cos = manager.create(cosTable, new Shape(maxPositions, half));
+        this.sin = manager.create(sinTable, new Shape(maxPositions, half));
+    }
+
+    public int maxPositions() {
+        return maxPositions;
+    }
+
+    /**
+     * Поворачивает головы на их абсолютные позиции.
+     * @param x Shape: (batch_size, seq_len, num_heads, head_dim)
+     * @param positions seq_len позиций, общих для всего пакета, или batch_size * seq_len позиций (по строкам пакета).
+     * @return Shape: как у x
+     */
+    public NDArray apply(NDArray x, long[] positions) {
+        Shape shape = x.getShape();
+        if (shape.get(3) != headDim) {
+            throw new IllegalArgumentException("Expected head_dim " + headDim + ", got " + shape);
+        }
+        for (long position : positions) {
+            if (position < 0 || position >= maxPositions) {
+                throw new IllegalArgumentException("Position " + position + " is outside [0, " + maxPositions + ")");
+            }
+        }
+        return Backends.current().rotary(x, cos, sin, positions);
+    }
+
+    /**
+     * Позиции offset, offset + 1, ..., offset + length - 1.
+     */
+    public static long[] positions(long offset, long length) {
+        long[] positions = new long[(int) length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = offset + i;
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,170 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.metrics.Metrics;
+import io.github.manjago.javastone.metrics.Stage;
+import java.util.Random;
+
+/**
+ * Выбор следующего токена по логитам: greedy, temperature, top-k, top-p.
+ * Все вычисления выполняются тензорными операциями; в JVM возвращается только номер токена,
+ * а из JVM на устройство уходит одно случайное число на строку.
+ */
+public class Sampler {
+
+    private final GenerationParams params;
+    private final Random random;
+
+    public Sampler(GenerationParams params) {
+        this.params = params;
+        this.random = new Random(params.seed());
+    }
+
+    public boolean isGreedy() {
+        return params.isGreedy();
+    }
+
+    /**
+     * @param logits Логиты следующего токена. Shape: (batch_size, vocab_size)
+     * @return Выбранные токены в менеджере логитов. Shape: (batch_size), тип INT64.
+     */
+    public NDArray sample(NDArray logits) {
+        Metrics.Span span = Metrics.start(Stage.SAMPLING, -1);
+        NDArray tokens = params.isGreedy() ? logits.argMax(-1) : sampleDistribution(logits);
+        Metrics.end(span);
+        return tokens;
+    }
+
+    private NDArray sampleDistribution(NDArray logits) {
+        try (ForwardScope scope = ForwardScope.open(logits)) {
+            long vocabSize = logits.getShape().get(1);
+            NDArray scaled = logits.div(params.temperature());
+
+            // Без top-k/top-p сортировка не нужна: выбираем прямо по распределению словаря
+            boolean truncate = params.topK() > 0 || params.topP() < 1;
+            NDArray probs;
+            NDArray indices = null;
+            if (truncate) {
+                int k = params.topK() > 0 ? (int) Math.min(params.topK(), vocabSize) : (int) vocabSize;
+                NDList top = scaled.topK(k, -1, true, true);
+                probs = top.get(0).softmax(-1); // по убыванию вероятности
+                indices = top.get(1);
+                if (params.topP() < 1) {
+                    // Оставляем токены, масса перед которыми меньше topP; первый остается всегда
+                    NDArray before = probs.cumSum(-1).sub(probs);
+                    probs = probs.mul(before.lt(params.topP()).toType(DataType.FLOAT32, false));
+                }
+            } else {
+                probs = scaled.softmax(-1);
+            }
+
+            // Обратная функция распределения: номер первого элемента, где CDF превышает u * total
+            NDArray cdf = probs.cumSum(-1);
+            NDArray total = cdf.get(new NDIndex(":, -1:"));
+            NDArray threshold = uniform(scope.getManager(), logits.getShape().get(0)).mul(total);
+            NDArray choice = cdf.lt(threshold).toType(DataType.INT64, false)
+                    .sum(new int[]{-1}, true)
+                    .minimum(probs.getShape().get(1) - 1); // защита от погрешности округления
+            NDArray tokens = indices == null ? choice : indices.gather(choice, -1);
+            return scope.keep(tokens.squeeze(-1));
+        }
+    }
+
+    /**
+     * Распределение, из которого выбирает {@link #sample}, по всему словарю: temperature,
+     * top-k и top-p применены, отброшенные токены имеют вероятность 0, сумма строки равна 1.
+     * Для жадного выбора — единица на argmax. Нужно спекулятивному декодированию,
+     * которое сравнивает распределения черновой и основной моделей.
+     * @param logits Shape: (rows, vocab_size)
+     * @return Shape: (rows, vocab_size), в менеджере логитов.
+     */
+    public NDArray probabilities(NDArray logits) {
+        try (ForwardScope scope = ForwardScope.open(logits)) {
+            long vocabSize = logits.getShape().get(1);
+            if (params.isGreedy()) {
+                return scope.keep(logits.argMax(-1).oneHot((int) vocabSize, DataType.FLOAT32));
+            }
+            NDArray scaled = logits.div(params.temperature());
+            NDArray probs = scaled.softmax(-1);
+            if (params.topK() > 0 || params.topP() < 1) {
+                int k = params.topK() > 0 ? (int) Math.min(params.topK(), vocabSize) : (int) vocabSize;
+                NDList top = scaled.topK(k, -1, true, true);
+                NDArray kept = scope.getManager().full(new Shape(logits.getShape().get(0), 1), k, DataType.INT64);
+                if (params.topP() < 1) {
+                    // Те же правила, что в sampleDistribution: масса перед токеном меньше topP
+                    NDArray sorted = top.get(0).softmax(-1);
+                    NDArray before = sorted.cumSum(-1).sub(sorted);
+                    kept = before.lt(params.topP()).toType(DataType.INT64, false).sum(new int[]{-1}, true);
+                }
+                // Порог — наименьший оставленный логит; токены не ниже порога остаются
+                NDArray threshold = top.get(0).gather(kept.sub(1), -1);
+                probs = probs.mul(scaled.gte(threshold).toType(DataType.FLOAT32, false));
+            }
+            return scope.keep(probs.div(probs.sum(new int[]{-1}, true)));
+        }
+    }
+
+    /**
+     * Выбирает по одному токену из каждой строки распределения (не обязательно нормированного).
+     * @param probs Shape: (rows, vocab_size)
+     * @return Shape: (rows), тип INT64, в менеджере probs.
+     */
+    public NDArray sampleFrom(NDArray probs) {
+        try (ForwardScope scope = ForwardScope.open(probs)) {
+            NDArray cdf = probs.cumSum(-1);
+            NDArray threshold = uniform(scope.getManager(), probs.getShape().get(0)).mul(cdf.get(new NDIndex(":, -1:")));
+            // Первый элемент, где CDF превышает порог: нулевые вероятности никогда не выбираются
+            NDArray choice = cdf.lte(threshold).toType(DataType.INT64, false)
+                    .sum(new int[]{-1})
+                    .minimum(probs.getShape().get(1) - 1);
+            return scope.keep(choice);
+        }
+    }
+
+    /**
+     * Равномерные случайные числа в [0, 1) из генератора этого сэмплера.
+     * @return Shape: (rows, 1)
+     */
+    NDArray uniform(NDManager manager, long rows) {
+        float[] values = new float[(int) rows];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextFloat();
+        }
+        return manager.create(values, new Shape(rows, 1));
+    }
+
+    // --- Тестовый блок для проверки ---
+    public static void main(String[] args) {
+        System.out.println("--- Testing Sampler ---");
+
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray logits = manager.create(new float[][]{
+                {0.1f, 5f, 0.2f, 4.5f, -1f},
+                {3f, 0f, 0f, 0f, 2.9f}
+            });
+
+            System.out.println("Greedy: " + new Sampler(GenerationParams.greedy(1)).sample(logits));
+
+            // top-k = 2: допустимы только два лучших токена каждой строки (1/3 и 0/4)
+            Sampler topK = new Sampler(GenerationParams.sampling(1, 1f, 2, 1f).withSeed(42));
+            int[][] counts = new int[2][5];
+            for (int i = 0; i < 200; i++) {
+                long[] tokens = topK.sample(logits).toLongArray();
+                counts[0][(int) tokens[0]]++;
+                counts[1][(int) tokens[1]]++;
+            }
+            System.out.println("top-k=2 counts row 0: " + java.util.Arrays.toString(counts[0]));
+            System.out.println("top-k=2 counts row 1: " + java.util.Arrays.toString(counts[1]));
+
+            // top-p = 0.5: в первой строке первый токен уже набирает больше половины массы
+            Sampler topP = new Sampler(GenerationParams.sampling(1, 1f, 0, 0.5f).withSeed(7));
+            System.out.println("top-p=0.5 token of row 0 (should be 1): " + topP.sample(logits).getLong(0));
+            System.out.println("\nTest successful!");
+        }
+    }
+}
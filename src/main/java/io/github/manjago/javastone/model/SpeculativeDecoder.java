@@ -0,0 +1,259 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.metrics.Metrics;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Спекулятивное декодирование одной последовательности (Leviathan et al., Chen et al.).
+ * За раунд черновая модель по одному предлагает k токенов d1..dk с распределениями q1..qk,
+ * а основная модель проверяет их одним проходом по k + 1 позициям через свой K/V кэш
+ * и получает распределения p1..p(k+1). Токен di принимается с вероятностью min(1, pi(di) / qi(di));
+ * на первом отвергнутом выбирается замена из нормированного max(0, pi - qi), а если приняты все —
+ * еще один токен из p(k+1). Поэтому распределение результата совпадает с обычной генерацией
+ * основной моделью (с теми же temperature, top-k, top-p), а за один проход основной модели
+ * выдается от 1 до k + 1 токенов. Отвергнутые позиции срезаются с обоих кэшей.
+ */
+public class SpeculativeDecoder implements PrimitiveIterator.OfLong, AutoCloseable {
+
+    private final GemmaModel target;
+    private final GemmaModel draft;
+    private final NDManager manager;
+    private final GenerationParams params;
+    private final int numDraftTokens;
+    private final Sampler targetSampler;
+    private final Sampler draftSampler;
+    private final int promptLength;
+    private KVCache targetCache;
+    private KVCache draftCache;
+    private long[] sequence; // Промпт и все выбранные токены; последний еще не прошел ни одну модель
+    private int length;
+    private int emitted; // Сколько токенов из sequence уже выдано наружу
+    private long last;
+    private long drafted;
+    private long accepted;
+
+    /**
+     * @param numDraftTokens Сколько токенов предлагает черновая модель за раунд.
+     */
+    SpeculativeDecoder(GemmaModel target, GemmaModel draft, NDManager manager, long[] prompt,
+                       GenerationParams params, int numDraftTokens) {
+        if (prompt.length == 0) {
+            throw new IllegalArgumentException("Prompt must not be empty");
+        }
+        if (numDraftTokens <= 0) {
+            throw new IllegalArgumentException("numDraftTokens must be positive");
+        }
+        this.target = target;
+        this.draft = draft;
+        this.manager = manager;
+        this.params = params;
+        this.numDraftTokens = numDraftTokens;
+        this.targetSampler = new Sampler(params);
+        // У черновой модели свой поток случайных чисел, иначе ее выбор коррелирует с проверкой
+        this.draftSampler = new Sampler(params.withSeed(params.seed() + 1));
+        this.promptLength = prompt.length;
+        this.sequence = Arrays.copyOf(prompt, prompt.length + numDraftTokens + 1);
+        this.length = prompt.length;
+        this.emitted = prompt.length;
+        this.targetCache = target.newCache(manager);
+        this.draftCache = draft.newCache(manager);
+    }
+
+    @Override
+    public boolean hasNext() {
+        int produced = emitted - promptLength;
+        if (targetCache == null) {
+            return false;
+        }
+        if (produced >= params.maxNewTokens() || (produced > 0 && last == params.stopTokenId())) {
+            close();
+            return false;
+        }
+        if (emitted == length) {
+            advance();
+        }
+        return true;
+    }
+
+    @Override
+    public long nextLong() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        last = sequence[emitted++];
+        return last;
+    }
+
+    /**
+     * Доля черновых токенов, принятых основной моделью.
+     */
+    public double acceptanceRate() {
+        return drafted == 0 ? 0 : (double) accepted / drafted;
+    }
+
+    private void advance() {
+        long start = System.nanoTime();
+        try (NDManager step = manager.newSubManager()) {
+            if (length == promptLength) {
+                long[] prompt = Arrays.copyOf(sequence, promptLength);
+                NDArray logits = target.prefill(step, prompt, targetCache, null);
+                draft.prefill(step, prompt, draftCache, null);
+                append(targetSampler.sample(logits).getLong(0));
+                Metrics.recordFirstToken(promptLength, System.nanoTime() - start);
+            } else {
+                int produced = length - promptLength;
+                // Черновики сверх maxNewTokens все равно не были бы выданы
+                int k = Math.min(numDraftTokens, params.maxNewTokens() - produced - 1);
+                int added = k > 0 ? speculate(step, k) : verify(step, new long[0], new NDList());
+                // Раунд выдает сразу added токенов: задержка между токенами делится поровну,
+                // иначе гистограмма видела бы один долгий интервал вместо нескольких коротких
+                long nanos = System.nanoTime() - start;
+                for (int i = 0; i < added; i++) {
+                    Metrics.recordDecodeStep(1, nanos / added);
+                }
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Раунд: черновая модель предлагает k токенов, основная проверяет их.
+     * @return Сколько токенов добавлено в последовательность.
+     */
+    private int speculate(NDManager step, int k) {
+        long[] drafts = new long[k];
+        NDList draftProbs = new NDList();
+        // После раунда, где приняты все черновики, в кэше черновой модели не хватает двух последних токенов
+        long[] feed = Arrays.copyOfRange(sequence, (int) draftCache.length(), length);
+        for (int i = 0; i < k; i++) {
+            NDArray logits = draft.forwardLast(step.create(feed, new Shape(1, feed.length)), draftCache);
+            NDArray q = draftSampler.probabilities(logits);
+            drafts[i] = draftSampler.sampleFrom(q).getLong(0);
+            draftProbs.add(q);
+            feed = new long[]{drafts[i]};
+        }
+        return verify(step, drafts, draftProbs);
+    }
+
+    /**
+     * Проверка черновиков одним проходом основной модели и выбор токенов.
+     * @param draftProbs Распределения черновой модели, по одному (1, vocab_size) на черновик.
+     * @return Сколько токенов добавлено в последовательность.
+     */
+    private int verify(NDManager step, long[] drafts, NDList draftProbs) {
+        int k = drafts.length;
+        long base = length; // Длина последовательности до раунда; в кэше основной модели base - 1 позиций
+        long[] tokens = new long[k + 1];
+        tokens[0] = sequence[length - 1];
+        System.arraycopy(drafts, 0, tokens, 1, k);
+        NDArray logits = target.forward(step.create(tokens, new Shape(1, k + 1)), targetCache);
+        NDArray p = targetSampler.probabilities(logits.reshape(k + 1, -1));
+
+        int taken = 0;
+        if (k > 0) {
+            NDArray q = NDArrays.concat(draftProbs, 0);
+            NDArray index = step.create(drafts, new Shape(k, 1));
+            NDArray ratio = p.get(new NDIndex(":{}", k)).gather(index, -1).div(q.gather(index, -1));
+            boolean[] accept = targetSampler.uniform(step, k).lt(ratio).toBooleanArray();
+            while (taken < k && accept[taken]) {
+                taken++;
+            }
+            drafted += k;
+            accepted += taken;
+        }
+
+        NDArray next;
+        if (taken < k) {
+            // Замена отвергнутого токена: из положительной части разности распределений
+            NDIndex row = new NDIndex("{}:{}", taken, taken + 1);
+            NDArray residual = p.get(row).sub(draftProbs.get(taken)).maximum(0f);
+            next = residual.sum().getFloat() > 0 ? residual : p.get(row);
+        } else {
+            next = p.get(new NDIndex("{}:{}", k, k + 1));
+        }
+        long token = targetSampler.sampleFrom(next).getLong(0);
+
+        for (int i = 0; i < taken; i++) {
+            append(drafts[i]);
+        }
+        append(token);
+        // В кэшах остаются только позиции принятых токенов
+        targetCache.truncate(base + taken);
+        draftCache.truncate(Math.min(draftCache.length(), base + taken));
+        return taken + 1;
+    }
+
+    private void append(long token) {
+        if (length == sequence.length) {
+            sequence = Arrays.copyOf(sequence, sequence.length * 2);
+        }
+        sequence[length++] = token;
+    }
+
+    @Override
+    public void close() {
+        if (targetCache != null) {
+            targetCache.close();
+            draftCache.close();
+            targetCache = null;
+            draftCache = null;
+        }
+    }
+
+    // --- Тестовый блок: жадная спекулятивная генерация должна совпасть с обычной ---
+    public static void main(String[] args) {
+        System.out.println("--- Testing SpeculativeDecoder ---");
+
+        try (NDManager manager = NDManager.newBaseManager()) {
+            int vocabSize = 100;
+            int embedDim = 12;
+            EmbeddingLayer embedding = new EmbeddingLayer(manager.randomNormal(new Shape(vocabSize, embedDim)));
+            List<TransformerBlock> blocks = List.of(
+                    TestUtils.createFakeTransformerBlock(manager, embedDim, 4, 48),
+                    TestUtils.createFakeTransformerBlock(manager, embedDim, 4, 48),
+                    TestUtils.createFakeTransformerBlock(manager, embedDim, 4, 48));
+            GemmaModel model = new GemmaModel(embedding, blocks, new RMSNorm(manager.zeros(new Shape(embedDim)), 1e-6f));
+            GemmaModel draft = model.truncated(1);
+
+            long[] prompt = {10, 25, 5, 78, 99};
+            GenerationParams params = GenerationParams.greedy(20);
+            long[] expected;
+            try (TokenStream stream = model.generate(manager, prompt, params)) {
+                expected = collect(stream);
+            }
+            try (SpeculativeDecoder decoder = model.generateSpeculative(manager, prompt, params, draft, 4)) {
+                long[] actual = collect(decoder);
+                System.out.println("Regular:     " + Arrays.toString(expected));
+                System.out.println("Speculative: " + Arrays.toString(actual));
+                System.out.println("Identical: " + Arrays.equals(expected, actual)
+                        + ", acceptance rate: " + decoder.acceptanceRate());
+            }
+
+            GenerationParams sampling = GenerationParams.sampling(20, 0.8f, 20, 0.9f).withSeed(42);
+            try (SpeculativeDecoder decoder = model.generateSpeculative(manager, prompt, sampling, draft, 4)) {
+                System.out.println("Sampled: " + Arrays.toString(collect(decoder))
+                        + ", acceptance rate: " + decoder.acceptanceRate());
+            }
+        }
+    }
+
+    private static long[] collect(PrimitiveIterator.OfLong tokens) {
+        long[] result = new long[0];
+        while (tokens.hasNext()) {
+            result = Arrays.copyOf(result, result.length + 1);
+            result[result.length - 1] = tokens.nextLong();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,22 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+/**
+ * Вспомогательный класс, чтобы не загромождать main метод.
+ */
+class TestUtils {
+    public static TransformerBlock createFakeTransformerBlock(NDManager manager, int embedDim, int numHeads, int ffnHiddenDim) {
+        LinearLayer q_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
+        LinearLayer k_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
+        LinearLayer v_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
+        LinearLayer o_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
+        MultiHeadAttention attention = new MultiHeadAttention(embedDim, numHeads, q_proj, k_proj, v_proj, o_proj);
+        RMSNorm norm1 = new RMSNorm(manager.zeros(new Shape(embedDim)), 1e-6f);
+        RMSNorm norm2 = new RMSNorm(manager.zeros(new Shape(embedDim)), 1e-6f);
+        LinearLayer gate_up_proj = new LinearLayer(manager.randomNormal(new Shape(2 * ffnHiddenDim, embedDim)), null);
+        LinearLayer down_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, ffnHiddenDim)), null);
+        return new TransformerBlock(attention, norm1, norm2, new GatedFeedForward(gate_up_proj, down_proj));
+    }
+}
@@ -0,0 +1,97 @@
+package io.github.manjago.javastone.model;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.metrics.Metrics;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Потоковая генерация: каждый вызов nextLong() выполняет один шаг модели.
+ * Первый шаг — prefill промпта кусками, далее по одному токену через K/V кэш.
+ * Кэш освобождается при завершении генерации или при close().
+ */
+public class TokenStream implements PrimitiveIterator.OfLong, AutoCloseable {
+
+    private final GemmaModel model;
+    private final NDManager manager;
+    private final long[] prompt;
+    private final GenerationParams params;
+    private final Sampler sampler;
+    private final PrefixCache prefixCache;
+    private KVCache cache;
+    private int produced;
+    private long last;
+    private long next;
+    private boolean ready;
+
+    TokenStream(GemmaModel model, NDManager manager, long[] prompt, GenerationParams params,
+                PrefixCache prefixCache) {
+        if (prompt.length == 0) {
+            throw new IllegalArgumentException("Prompt must not be empty");
+        }
+        this.model = model;
+        this.manager = manager;
+        this.prompt = prompt.clone();
+        this.params = params;
+        this.sampler = new Sampler(params);
+        this.prefixCache = prefixCache;
+        this.cache = model.newCache(manager);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (ready) {
+            return true;
+        }
+        if (cache == null) {
+            return false;
+        }
+        if (produced >= params.maxNewTokens() || (produced > 0 && last == params.stopTokenId())) {
+            close();
+            return false;
+        }
+        next = advance();
+        ready = true;
+        return true;
+    }
+
+    @Override
+    public long nextLong() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        produced++;
+        last = next;
+        return last;
+    }
+
+    private long advance() {
+        long start = System.nanoTime();
+        try (NDManager step = manager.newSubManager()) {
+            NDArray logits = produced == 0
+                    ? model.prefill(step, prompt, cache, prefixCache)
+                    : model.forwardLast(step.create(new long[]{last}, new Shape(1, 1)), cache);
+            long token = sampler.sample(logits).getLong(0);
+            if (produced == 0) {
+                Metrics.recordFirstToken(prompt.length, System.nanoTime() - start);
+            } else {
+                Metrics.recordDecodeStep(1, System.nanoTime() - start);
+            }
+            return token;
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (cache != null) {
+            cache.close();
+            cache = null;
+        }
+    }
+}
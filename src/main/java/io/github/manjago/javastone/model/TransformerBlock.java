@@ -3,35 +3,76 @@ package io.github.manjago.javastone.model;
 import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.types.Shape;
-import ai.djl.nn.Activation;
+import io.github.manjago.javastone.metrics.Metrics;
+import io.github.manjago.javastone.metrics.Stage;
+import java.util.List;
+import java.util.function.UnaryOperator;
 
 public class TransformerBlock {
 
     private final MultiHeadAttention attention;
-    private final LayerNorm norm1;
-    private final LayerNorm norm2;
-    private final LinearLayer ffn1;
-    private final LinearLayer ffn2;
+    private final RMSNorm norm1;
+    private final RMSNorm norm2;
+    private final GatedFeedForward mlp;
+    private int layerIndex = -1; // Номер блока в модели, для метрик
 
-    public TransformerBlock(MultiHeadAttention attention, LayerNorm norm1, LayerNorm norm2,
-                            LinearLayer ffn1, LinearLayer ffn2) {
+    public TransformerBlock(MultiHeadAttention attention, RMSNorm norm1, RMSNorm norm2, GatedFeedForward mlp) {
         this.attention = attention;
         this.norm1 = norm1;
         this.norm2 = norm2;
-        this.ffn1 = ffn1;
-        this.ffn2 = ffn2;
+        this.mlp = mlp;
+    }
+
+    void bindLayerIndex(int index) {
+        this.layerIndex = index;
     }
 
     public NDArray forward(NDArray input) {
-        NDArray normInput = norm1.forward(input);
-        NDArray attentionOutput = attention.forward(normInput);
-        NDArray residual1 = input.add(attentionOutput);
+        return forward(input, null);
+    }
+
+    /**
+     * Прямой проход блока с K/V кэшем слоя внимания.
+     * @param cache Кэш этого блока. Может быть null.
+     */
+    public NDArray forward(NDArray input, KVCache.LayerCache cache) {
+        // Все промежуточные тензоры блока освобождаются по его завершении
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            return scope.keep(compute(input, x -> attention.forward(x, cache)));
+        }
+    }
 
-        NDArray normResidual1 = norm2.forward(residual1);
-        NDArray ffnOutput = ffn1.forward(normResidual1);
-        ffnOutput = Activation.gelu(ffnOutput);
-        ffnOutput = ffn2.forward(ffnOutput);
-        NDArray finalOutput = residual1.add(ffnOutput);
+    /**
+     * Шаг декодирования пакета последовательностей с отдельными кэшами
+     * (см. {@link MultiHeadAttention#forwardBatch}).
+     */
+    public NDArray forwardBatch(NDArray input, List<KVCache.LayerCache> caches) {
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            return scope.keep(compute(input, x -> attention.forwardBatch(x, caches)));
+        }
+    }
+
+    private NDArray compute(NDArray input, UnaryOperator<NDArray> attend) {
+        // Промежуточные тензоры участка освобождаются его собственной областью внутри замера,
+        // поэтому в нативные байты участка попадают именно они; residual1 переходит
+        // в область блока и освобождается вместе с ней
+        Metrics.Span span = Metrics.start(Stage.ATTENTION, layerIndex);
+        NDArray residual1;
+        try (ForwardScope scope = ForwardScope.open(input)) {
+            NDArray normInput = norm1.forward(input);
+            NDArray attentionOutput = attend.apply(normInput);
+            residual1 = scope.keep(input.add(attentionOutput));
+        }
+        Metrics.end(span);
+
+        span = Metrics.start(Stage.FFN, layerIndex);
+        NDArray finalOutput;
+        try (ForwardScope scope = ForwardScope.open(residual1)) {
+            NDArray normResidual1 = norm2.forward(residual1);
+            NDArray ffnOutput = mlp.forward(normResidual1);
+            finalOutput = scope.keep(residual1.add(ffnOutput));
+        }
+        Metrics.end(span);
 
         return finalOutput;
     }
@@ -53,13 +94,14 @@ public class TransformerBlock {
             LinearLayer o_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, embedDim)), null);
             MultiHeadAttention attention = new MultiHeadAttention(embedDim, numHeads, q_proj, k_proj, v_proj, o_proj);
 
-            LayerNorm norm1 = new LayerNorm(manager.ones(new Shape(embedDim)), manager.zeros(new Shape(embedDim)), 1e-5f);
-            LayerNorm norm2 = new LayerNorm(manager.ones(new Shape(embedDim)), manager.zeros(new Shape(embedDim)), 1e-5f);
+            RMSNorm norm1 = new RMSNorm(manager.zeros(new Shape(embedDim)), 1e-6f);
+            RMSNorm norm2 = new RMSNorm(manager.zeros(new Shape(embedDim)), 1e-6f);
             
-            LinearLayer ffn1 = new LinearLayer(manager.randomNormal(new Shape(ffnHiddenDim, embedDim)), null);
-            LinearLayer ffn2 = new LinearLayer(manager.randomNormal(new Shape(embedDim, ffnHiddenDim)), null);
+            LinearLayer gate_up_proj = new LinearLayer(manager.randomNormal(new Shape(2 * ffnHiddenDim, embedDim)), null);
+            LinearLayer down_proj = new LinearLayer(manager.randomNormal(new Shape(embedDim, ffnHiddenDim)), null);
 
-            TransformerBlock block = new TransformerBlock(attention, norm1, norm2, ffn1, ffn2);
+            TransformerBlock block = new TransformerBlock(attention, norm1, norm2,
+                    new GatedFeedForward(gate_up_proj, down_proj));
 
             NDArray input = manager.randomNormal(new Shape(batchSize, seqLen, embedDim));
             System.out.println("Input shape: " + input.getShape());
@@ -0,0 +1,275 @@
+package io.github.manjago.javastone.serving;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.metrics.Metrics;
+import io.github.manjago.javastone.model.GemmaModel;
+import io.github.manjago.javastone.model.GenerationParams;
+import io.github.manjago.javastone.model.KVCache;
+import io.github.manjago.javastone.model.PrefixCache;
+import io.github.manjago.javastone.model.Sampler;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Планировщик генерации с непрерывным батчингом (continuous batching).
+ * Запросы из любых потоков (в том числе виртуальных) попадают в очередь.
+ * Единственный рабочий поток владеет моделью: между шагами декодирования он принимает
+ * новые запросы (prefill в собственный K/V кэш) и снимает завершенные, а все активные
+ * последовательности продвигает одним батчевым шагом {@link GemmaModel#forwardBatchStep}.
+ * Разная длина последовательностей покрывается дополнением и маской внимания.
+ */
+public class GenerationScheduler implements AutoCloseable {
+
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final GemmaModel model;
+    private final NDManager manager;
+    private final int maxBatchSize;
+    private final long eosTokenId;
+    private final PrefixCache prefixCache;
+    private final BlockingQueue<Sequence> pending = new LinkedBlockingQueue<>();
+    private final List<Sequence> active = new ArrayList<>();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    /**
+     * @param manager Родительский менеджер для кэшей и временных тензоров шагов.
+     * @param maxBatchSize Максимум одновременно декодируемых последовательностей.
+     * @param eosTokenId Токен конца последовательности; генерация на нем завершается.
+     */
+    public GenerationScheduler(GemmaModel model, NDManager manager, int maxBatchSize, long eosTokenId) {
+        this(model, manager, maxBatchSize, eosTokenId, null);
+    }
+
+    /**
+     * @param prefixCache Общий кэш префиксов промптов; prefill новых запросов начинается
+     *                    после самого длинного сохраненного префикса. Может быть null.
+     */
+    public GenerationScheduler(GemmaModel model, NDManager manager, int maxBatchSize, long eosTokenId,
+                               PrefixCache prefixCache) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        this.model = model;
+        this.manager = manager.newSubManager();
+        this.maxBatchSize = maxBatchSize;
+        this.eosTokenId = eosTokenId;
+        this.prefixCache = prefixCache;
+        this.worker = Thread.ofPlatform().name("javastone-scheduler").daemon().start(this::loop);
+    }
+
+    /**
+     * Ставит запрос в очередь с жадным выбором токенов.
+     * @param prompt Токены промпта, не пустой массив.
+     * @param maxNewTokens Максимум сгенерированных токенов.
+     * @return Future со сгенерированными токенами (без промпта).
+     */
+    public CompletableFuture<long[]> submit(long[] prompt, int maxNewTokens) {
+        if (maxNewTokens <= 0) {
+            throw new IllegalArgumentException("maxNewTokens must be positive");
+        }
+        return submit(prompt, GenerationParams.greedy(maxNewTokens));
+    }
+
+    /**
+     * Ставит запрос в очередь. Генерация завершается на eosTokenId планировщика
+     * или на собственном стоп-токене запроса.
+     * @param prompt Токены промпта, не пустой массив.
+     * @param params Параметры сэмплирования этого запроса.
+     * @return Future со сгенерированными токенами (без промпта).
+     */
+    public CompletableFuture<long[]> submit(long[] prompt, GenerationParams params) {
+        if (prompt.length == 0) {
+            throw new IllegalArgumentException("Prompt must not be empty");
+        }
+        if (!running) {
+            throw new IllegalStateException("Scheduler is closed");
+        }
+        Sequence sequence = new Sequence(prompt.clone(), params);
+        pending.add(sequence);
+        // Рабочий поток мог остановиться и разобрать очередь между проверкой и добавлением
+        if (!running && pending.remove(sequence)) {
+            sequence.fail(new CancellationException("Scheduler is closed"));
+        }
+        return sequence.result;
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                admit();
+                if (!active.isEmpty()) {
+                    step();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                // Ошибку батчевого шага нельзя отнести к одному запросу: завершаем все активные
+                active.forEach(sequence -> sequence.fail(e));
+                active.clear();
+            }
+        }
+        CancellationException cancelled = new CancellationException("Scheduler is closed");
+        active.forEach(sequence -> sequence.fail(cancelled));
+        active.clear();
+        failPending(cancelled);
+    }
+
+    private void failPending(CancellationException cancelled) {
+        Sequence sequence;
+        while ((sequence = pending.poll()) != null) {
+            sequence.fail(cancelled);
+        }
+    }
+
+    /**
+     * Принимает новые запросы, пока в пакете есть место. Если активных нет, ждет первого.
+     */
+    private void admit() throws InterruptedException {
+        if (active.isEmpty()) {
+            Sequence first = pending.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                return;
+            }
+            prefill(first);
+        }
+        Sequence next;
+        while (active.size() < maxBatchSize && (next = pending.poll()) != null) {
+            prefill(next);
+        }
+    }
+
+    private void prefill(Sequence sequence) {
+        sequence.cache = model.newCache(manager);
+        long firstToken;
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray logits = model.prefill(scope, sequence.prompt, sequence.cache, prefixCache);
+            firstToken = sequence.sampler.sample(logits).getLong(0);
+        } catch (RuntimeException e) {
+            sequence.fail(e);
+            return;
+        }
+        // Время до первого токена считается от постановки в очередь: включает ожидание
+        Metrics.recordFirstToken(sequence.prompt.length, System.nanoTime() - sequence.submittedNanos);
+        sequence.accept(firstToken);
+        if (sequence.finished()) {
+            sequence.complete();
+        } else {
+            active.add(sequence);
+        }
+    }
+
+    private void step() {
+        long[] lastTokens = new long[active.size()];
+        List<KVCache> caches = new ArrayList<>(active.size());
+        for (int i = 0; i < active.size(); i++) {
+            lastTokens[i] = active.get(i).lastToken();
+            caches.add(active.get(i).cache);
+        }
+        long[] nextTokens;
+        long start = System.nanoTime();
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray tokens = scope.create(lastTokens, new Shape(lastTokens.length, 1));
+            nextTokens = sample(model.forwardBatchStep(tokens, caches));
+        }
+        Metrics.recordDecodeStep(nextTokens.length, System.nanoTime() - start);
+        for (int i = 0; i < active.size(); i++) {
+            active.get(i).accept(nextTokens[i]);
+        }
+        active.removeIf(sequence -> {
+            if (sequence.finished()) {
+                sequence.complete();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Если все активные запросы жадные, выбор делается одним argmax по пакету,
+     * иначе каждая строка сэмплируется своим сэмплером.
+     */
+    private long[] sample(NDArray logits) {
+        if (active.stream().allMatch(sequence -> sequence.sampler.isGreedy())) {
+            return logits.argMax(-1).toLongArray();
+        }
+        long[] tokens = new long[active.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = active.get(i).sampler.sample(logits.get(i).expandDims(0)).getLong(0);
+        }
+        return tokens;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Запросы, добавленные после того, как рабочий поток разобрал очередь
+        failPending(new CancellationException("Scheduler is closed"));
+        manager.close();
+    }
+
+    private final class Sequence {
+
+        private final long[] prompt;
+        private final GenerationParams params;
+        private final Sampler sampler;
+        private final CompletableFuture<long[]> result = new CompletableFuture<>();
+        private final long submittedNanos = System.nanoTime();
+        private long[] generated = new long[16];
+        private int count;
+        private KVCache cache;
+
+        Sequence(long[] prompt, GenerationParams params) {
+            this.prompt = prompt;
+            this.params = params;
+            this.sampler = new Sampler(params);
+        }
+
+        void accept(long token) {
+            if (count == generated.length) {
+                generated = Arrays.copyOf(generated, count * 2);
+            }
+            generated[count++] = token;
+        }
+
+        long lastToken() {
+            return generated[count - 1];
+        }
+
+        boolean finished() {
+            return count >= params.maxNewTokens() || lastToken() == eosTokenId
+                    || lastToken() == params.stopTokenId();
+        }
+
+        void complete() {
+            release();
+            result.complete(Arrays.copyOf(generated, count));
+        }
+
+        void fail(Throwable error) {
+            release();
+            result.completeExceptionally(error);
+        }
+
+        private void release() {
+            if (cache != null) {
+                cache.close();
+                cache = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package io.github.manjago.javastone.serving;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.pytorch.jni.JniUtils;
+import io.github.manjago.javastone.backend.Backends;
+import io.github.manjago.javastone.backend.VectorBackend;
+import io.github.manjago.javastone.model.GemmaModel;
+import io.github.manjago.javastone.model.KVCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Конвейерное (pipeline-parallel) исполнение модели на многоядерном CPU.
+ * Блоки модели разбиты на стадии; у каждой стадии свой поток, свой NDManager и свое
+ * число потоков внутри операций. Стадии связаны очередями: пока стадия s обрабатывает
+ * микро-батч i, стадия s - 1 уже обрабатывает микро-батч i + 1 (волновой фронт).
+ * Микро-батчи — проходы параллельных запросов и куски длинных промптов.
+ * <p>
+ * Каждая стадия трогает только свои слои K/V кэша, а очереди сохраняют порядок,
+ * поэтому куски одного промпта можно подавать в конвейер подряд, не дожидаясь результата.
+ */
+public class PipelineExecutor implements AutoCloseable {
+
+    /**
+     * Стадия конвейера.
+     * @param fromBlock Первый блок стадии (включительно).
+     * @param toBlock Последний блок стадии (не включительно).
+     * @param intraOpThreads Потоков внутри операций стадии; 0 — не менять настройку движка.
+     */
+    public record StageSpec(int fromBlock, int toBlock, int intraOpThreads) {}
+
+    private static final String PYTORCH_ENGINE = "PyTorch";
+
+    private final GemmaModel model;
+    private final List<Stage> stages = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param manager Родительский менеджер; каждая стадия создает от него свой под-менеджер.
+     * @param specs Стадии, покрывающие все блоки модели подряд.
+     */
+    public PipelineExecutor(GemmaModel model, NDManager manager, List<StageSpec> specs) {
+        int expectedFrom = 0;
+        for (StageSpec spec : specs) {
+            if (spec.fromBlock() != expectedFrom || spec.toBlock() <= spec.fromBlock()) {
+                throw new IllegalArgumentException("Stages must cover consecutive non-empty block ranges: " + specs);
+            }
+            expectedFrom = spec.toBlock();
+        }
+        if (specs.isEmpty() || expectedFrom != model.numBlocks()) {
+            throw new IllegalArgumentException("Stages must cover all " + model.numBlocks() + " blocks: " + specs);
+        }
+        this.model = model;
+        for (int i = 0; i < specs.size(); i++) {
+            stages.add(new Stage(i, specs.get(i), manager.newSubManager()));
+        }
+        stages.forEach(Stage::start);
+    }
+
+    /**
+     * Делит блоки модели на numStages стадий примерно поровну.
+     */
+    public static List<StageSpec> evenStages(int numBlocks, int numStages, int intraOpThreads) {
+        if (numStages <= 0 || numStages > numBlocks) {
+            throw new IllegalArgumentException("numStages must be in [1, " + numBlocks + "]");
+        }
+        List<StageSpec> specs = new ArrayList<>(numStages);
+        for (int i = 0; i < numStages; i++) {
+            specs.add(new StageSpec(numBlocks * i / numStages, numBlocks * (i + 1) / numStages, intraOpThreads));
+        }
+        return specs;
+    }
+
+    /**
+     * Прямой проход с проекцией последней позиции на словарь.
+     * @param tokens Shape: (batch_size, new_len). Не должен освобождаться до завершения future.
+     * @param cache Кэш последовательности. Может быть null.
+     * @return Future с логитами следующего токена в менеджере tokens. Shape: (batch_size, vocab_size)
+     */
+    public CompletableFuture<NDArray> forwardLast(NDArray tokens, KVCache cache) {
+        MicroBatch batch = new MicroBatch(tokens, cache, true);
+        enqueue(batch);
+        return batch.result;
+    }
+
+    /**
+     * Заполнение кэша промптом кусками: куски сразу подаются в конвейер друг за другом,
+     * поэтому разные стадии одновременно обрабатывают разные куски одного промпта.
+     * Куски образуют группу: после ошибки одного из них остальные завершаются той же
+     * ошибкой без вычислений. При исключительном завершении кэш неполон и непригоден.
+     * @param tokens Промпт, хотя бы один токен. Shape: (batch_size, seq_len)
+     * @return Future с логитами токена, следующего за промптом. Shape: (batch_size, vocab_size)
+     */
+    public CompletableFuture<NDArray> prefill(NDArray tokens, KVCache cache, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        long seqLen = tokens.getShape().get(1);
+        if (seqLen == 0) {
+            throw new IllegalArgumentException("Prompt must not be empty");
+        }
+        AtomicReference<Throwable> group = new AtomicReference<>();
+        List<MicroBatch> chunks = new ArrayList<>();
+        for (long start = 0; start < seqLen; start += chunkSize) {
+            long end = Math.min(start + chunkSize, seqLen);
+            NDArray chunk = tokens.get(new NDIndex(":, {}:{}", start, end));
+            chunks.add(new MicroBatch(chunk, cache, end == seqLen, group));
+        }
+        MicroBatch last = chunks.get(chunks.size() - 1);
+        // Ошибка любого куска делает кэш неполным: результатом становится первая из них
+        CompletableFuture<?>[] all = chunks.stream().map(chunk -> chunk.result).toArray(CompletableFuture[]::new);
+        CompletableFuture<NDArray> result = CompletableFuture.allOf(all).thenApply(ignored -> last.result.join())
+                .whenComplete((logits, error) -> chunks.forEach(chunk -> chunk.tokens.close()));
+        int enqueued = 0;
+        try {
+            for (MicroBatch chunk : chunks) {
+                enqueue(chunk);
+                enqueued++;
+            }
+        } catch (RuntimeException e) {
+            // Не поданные куски завершаются сразу, чтобы цепочка закрыла их view
+            chunks.subList(enqueued, chunks.size()).forEach(chunk -> chunk.fail(e));
+            throw e;
+        }
+        return result;
+    }
+
+    private void enqueue(MicroBatch batch) {
+        if (!running) {
+            throw new IllegalStateException("Pipeline is closed");
+        }
+        stages.get(0).offer(batch);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        stages.forEach(Stage::stop);
+    }
+
+    private static final class MicroBatch {
+
+        private final NDArray tokens;
+        private final KVCache cache;
+        private final boolean needLogits;
+        private final AtomicReference<Throwable> group; // Первая ошибка группы кусков одного prefill
+        private final CompletableFuture<NDArray> result = new CompletableFuture<>();
+        private NDArray hidden;
+
+        MicroBatch(NDArray tokens, KVCache cache, boolean needLogits) {
+            this(tokens, cache, needLogits, new AtomicReference<>());
+        }
+
+        MicroBatch(NDArray tokens, KVCache cache, boolean needLogits, AtomicReference<Throwable> group) {
+            this.tokens = tokens;
+            this.cache = cache;
+            this.needLogits = needLogits;
+            this.group = group;
+        }
+
+        /**
+         * Ошибка другого куска группы, если она уже была.
+         */
+        Throwable groupFailure() {
+            return group.get();
+        }
+
+        void fail(Throwable error) {
+            group.compareAndSet(null, error);
+            if (hidden != null) {
+                hidden.close();
+                hidden = null;
+            }
+            result.completeExceptionally(error);
+        }
+    }
+
+    private final class Stage {
+
+        private final int index;
+        private final StageSpec spec;
+        private final NDManager manager;
+        private final BlockingQueue<MicroBatch> queue = new LinkedBlockingQueue<>();
+        private final Thread thread;
+        private ForkJoinPool pool;
+
+        Stage(int index, StageSpec spec, NDManager manager) {
+            this.index = index;
+            this.spec = spec;
+            this.manager = manager;
+            this.thread = Thread.ofPlatform().name("javastone-pipeline-" + index).daemon().unstarted(this::loop);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Ставит микро-батч в очередь стадии. Если конвейер закрыли, а поток стадии уже
+         * разобрал очередь между проверкой и добавлением, батч завершается здесь.
+         */
+        void offer(MicroBatch batch) {
+            queue.add(batch);
+            if (!running && queue.remove(batch)) {
+                batch.fail(new CancellationException("Pipeline is closed"));
+            }
+        }
+
+        private void loop() {
+            configureThreads();
+            try {
+                while (running) {
+                    process(queue.take());
+                }
+            } catch (InterruptedException e) {
+                // Закрытие конвейера
+            } finally {
+                CancellationException cancelled = new CancellationException("Pipeline is closed");
+                MicroBatch batch;
+                while ((batch = queue.poll()) != null) {
+                    batch.fail(cancelled);
+                }
+                if (pool != null) {
+                    pool.shutdown();
+                }
+                manager.close();
+            }
+        }
+
+        /**
+         * Потоки внутри операций: у бэкенда vector — собственный пул стадии,
+         * у PyTorch — at::set_num_threads из потока стадии (при сборке с OpenMP это
+         * настройка вызывающего потока, при других сборках движка она общая на процесс).
+         */
+        private void configureThreads() {
+            if (spec.intraOpThreads() <= 0) {
+                return;
+            }
+            if (Backends.current() instanceof VectorBackend) {
+                pool = new ForkJoinPool(spec.intraOpThreads());
+                Backends.useInCurrentThread(new VectorBackend(pool));
+            } else if (PYTORCH_ENGINE.equals(Engine.getDefaultEngineName())) {
+                JniUtils.setNumThreads(spec.intraOpThreads());
+            }
+        }
+
+        private void process(MicroBatch batch) {
+            Throwable failure = batch.groupFailure();
+            if (failure != null) {
+                // Кэш уже неполон: вычислять остальные куски группы бессмысленно
+                batch.fail(failure);
+                return;
+            }
+            try {
+                // Вход стадии переходит в ее менеджер; предыдущее скрытое состояние освобождается
+                NDArray input = index == 0 ? model.embedTokens(batch.tokens) : batch.hidden;
+                input.attach(manager);
+                NDArray output = model.forwardBlocks(input, spec.fromBlock(), spec.toBlock(), batch.cache);
+                input.close();
+                batch.hidden = output;
+            } catch (RuntimeException e) {
+                batch.fail(e);
+                return;
+            }
+            if (index + 1 < stages.size()) {
+                stages.get(index + 1).offer(batch);
+                return;
+            }
+            finish(batch);
+        }
+
+        private void finish(MicroBatch batch) {
+            try {
+                NDArray logits = null;
+                if (batch.needLogits) {
+                    logits = model.lastPositionLogits(batch.hidden);
+                    logits.attach(batch.tokens.getManager());
+                }
+                batch.hidden.close();
+                batch.hidden = null;
+                batch.result.complete(logits);
+            } catch (RuntimeException e) {
+                batch.fail(e);
+            }
+        }
+
+        void stop() {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -11,5 +11,30 @@ public record GemmaConfig(
     @JsonProperty("intermediate_size") int intermediateSize,
     @JsonProperty("vocab_size") int vocabSize,
     @JsonProperty("rms_norm_eps") float rmsNormEps,
-    @JsonProperty("head_dim") int headDim
-) {}
\ No newline at end of file
+    @JsonProperty("head_dim") int headDim,
+    @JsonProperty("num_key_value_heads") int numKeyValueHeads,
+    @JsonProperty("rope_theta") float ropeTheta,
+    @JsonProperty("max_position_embeddings") int maxPositionEmbeddings
+) {
+
+    // Значения Gemma, если в конфиге их нет
+    public static final float DEFAULT_ROPE_THETA = 10000f;
+    public static final int DEFAULT_MAX_POSITION_EMBEDDINGS = 8192;
+
+    public GemmaConfig {
+        // Без head_dim размер головы выводится из hidden_size, как в transformers
+        if (headDim == 0 && numAttentionHeads != 0) {
+            headDim = hiddenSize / numAttentionHeads;
+        }
+        // Конфиги без num_key_value_heads описывают обычное multi-head внимание
+        if (numKeyValueHeads == 0) {
+            numKeyValueHeads = numAttentionHeads;
+        }
+        if (ropeTheta == 0) {
+            ropeTheta = DEFAULT_ROPE_THETA;
+        }
+        if (maxPositionEmbeddings == 0) {
+            maxPositionEmbeddings = DEFAULT_MAX_POSITION_EMBEDDINGS;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package io.github.manjago.javastone.util;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.sentencepiece.SpProcessor;
+import ai.djl.sentencepiece.SpTokenizer;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Токенизатор Gemma поверх SentencePiece (tokenizer.model из папки модели).
+ * Работает с примитивными массивами id без упаковки в объекты; пакетные encode/decode
+ * выполняются параллельно (SentencePiece-процессор потокобезопасен для чтения).
+ * Кодировки часто повторяющихся строк (системные промпты, шаблоны) хранятся в LRU-кэше.
+ */
+public class GemmaTokenizer implements AutoCloseable {
+
+    public static final String MODEL_FILE = "tokenizer.model";
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    // Служебные токены словаря Gemma, если в модели токенизатора их нет
+    private static final int DEFAULT_PAD_ID = 0;
+    private static final int DEFAULT_EOS_ID = 1;
+    private static final int DEFAULT_BOS_ID = 2;
+
+    private final SpTokenizer tokenizer;
+    private final SpProcessor processor;
+    private final Map<String, int[]> cache;
+    private final int padId;
+    private final int eosId;
+    private final int bosId;
+    private long cacheHits;
+    private long cacheMisses;
+
+    /**
+     * @param modelFile Файл модели SentencePiece.
+     * @param cacheSize Сколько строк хранить в кэше кодировок; 0 — без кэша.
+     */
+    public GemmaTokenizer(Path modelFile, int cacheSize) throws IOException {
+        this.tokenizer = new SpTokenizer(modelFile);
+        this.processor = tokenizer.getProcessor();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.padId = specialId("<pad>", DEFAULT_PAD_ID);
+        this.eosId = specialId("<eos>", DEFAULT_EOS_ID);
+        this.bosId = specialId("<bos>", DEFAULT_BOS_ID);
+    }
+
+    /**
+     * Загружает tokenizer.model из папки модели.
+     */
+    public static GemmaTokenizer load(Path modelDir) throws IOException {
+        return new GemmaTokenizer(modelDir.resolve(MODEL_FILE), DEFAULT_CACHE_SIZE);
+    }
+
+    private int specialId(String piece, int fallback) {
+        int id = processor.getId(piece);
+        // Неизвестные кусочки SentencePiece отображает в <unk>
+        return id > 0 && piece.equals(processor.getToken(id)) ? id : fallback;
+    }
+
+    public int padId() {
+        return padId;
+    }
+
+    public int eosId() {
+        return eosId;
+    }
+
+    public int bosId() {
+        return bosId;
+    }
+
+    /**
+     * Кодирует текст без служебных токенов. Повторные вызовы с той же строкой берутся из кэша.
+     */
+    public int[] encode(String text) {
+        int[] ids;
+        synchronized (cache) {
+            ids = cache.get(text);
+            if (ids != null) {
+                cacheHits++;
+            } else {
+                cacheMisses++;
+            }
+        }
+        if (ids == null) {
+            ids = processor.encode(text);
+            synchronized (cache) {
+                cache.put(text, ids);
+            }
+        }
+        // Кэшированный массив общий: наружу отдается копия
+        return ids.clone();
+    }
+
+    /**
+     * Промпт для модели: &lt;bos&gt;, затем части текста, каждая кодируется (и кэшируется) отдельно.
+     * Разбиение стоит делать по границам, на которых токенизация не склеивает куски —
+     * например, системный промпт и сообщение пользователя.
+     */
+    public long[] encodePrompt(String... parts) {
+        int[][] encoded = new int[parts.length][];
+        int length = 1;
+        for (int i = 0; i < parts.length; i++) {
+            encoded[i] = encode(parts[i]);
+            length += encoded[i].length;
+        }
+        long[] ids = new long[length];
+        ids[0] = bosId;
+        int position = 1;
+        for (int[] part : encoded) {
+            for (int id : part) {
+                ids[position++] = id;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Пакетное кодирование: каждый текст — промпт с &lt;bos&gt;, тексты кодируются параллельно.
+     */
+    public long[][] encodeBatch(List<String> texts) {
+        return texts.parallelStream().map(this::encodePrompt).toArray(long[][]::new);
+    }
+
+    /**
+     * Пакет id в тензор (batch_size, max_len) типа INT64, дополненный &lt;pad&gt; справа.
+     */
+    public NDArray toNDArray(NDManager manager, long[][] batch) {
+        int maxLen = 0;
+        for (long[] ids : batch) {
+            maxLen = Math.max(maxLen, ids.length);
+        }
+        long[] flat = new long[batch.length * maxLen];
+        for (int row = 0; row < batch.length; row++) {
+            long[] ids = batch[row];
+            System.arraycopy(ids, 0, flat, row * maxLen, ids.length);
+            Arrays.fill(flat, row * maxLen + ids.length, (row + 1) * maxLen, padId);
+        }
+        return manager.create(flat, new Shape(batch.length, maxLen));
+    }
+
+    public String decode(int[] ids) {
+        return processor.decode(ids);
+    }
+
+    /**
+     * Декодирует id модели; служебные токены (&lt;bos&gt;, &lt;eos&gt;, &lt;pad&gt;) пропускаются.
+     */
+    public String decode(long[] ids) {
+        int[] narrow = new int[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            if (id != bosId && id != eosId && id != padId) {
+                narrow[count++] = (int) id;
+            }
+        }
+        return processor.decode(count == ids.length ? narrow : Arrays.copyOf(narrow, count));
+    }
+
+    public String[] decodeBatch(List<long[]> batch) {
+        return batch.parallelStream().map(this::decode).toArray(String[]::new);
+    }
+
+    /**
+     * Новый инкрементальный детокенизатор для потоковой выдачи текста одной последовательности.
+     */
+    public StreamingDetokenizer newStream() {
+        return new StreamingDetokenizer(this);
+    }
+
+    public long cacheHits() {
+        synchronized (cache) {
+            return cacheHits;
+        }
+    }
+
+    public long cacheMisses() {
+        synchronized (cache) {
+            return cacheMisses;
+        }
+    }
+
+    @Override
+    public void close() {
+        tokenizer.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path modelPath = Path.of(System.getProperty("user.home"), "models", "gemma-2b");
+        try (GemmaTokenizer tokenizer = ModelLoader.loadTokenizer(modelPath)) {
+            String system = "You are a helpful assistant.";
+            long[] ids = tokenizer.encodePrompt(system, " Hello, world!");
+            System.out.println("Ids: " + Arrays.toString(ids));
+            System.out.println("Decoded: " + tokenizer.decode(ids));
+
+            tokenizer.encodeBatch(List.of(system, system, "Привет"));
+            System.out.println("Cache hits / misses: " + tokenizer.cacheHits() + " / " + tokenizer.cacheMisses());
+
+            StreamingDetokenizer stream = tokenizer.newStream();
+            StringBuilder streamed = new StringBuilder();
+            for (int i = 1; i < ids.length; i++) {
+                streamed.append(stream.push(ids[i]));
+            }
+            System.out.println("Streamed: " + streamed + stream.flush());
+        }
+    }
+}
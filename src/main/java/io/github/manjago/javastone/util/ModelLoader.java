@@ -1,26 +1,272 @@
 package io.github.manjago.javastone.util;
 
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.manjago.javastone.model.EmbeddingLayer;
+import io.github.manjago.javastone.model.GatedFeedForward;
+import io.github.manjago.javastone.model.GemmaModel;
+import io.github.manjago.javastone.model.LinearLayer;
+import io.github.manjago.javastone.model.MultiHeadAttention;
+import io.github.manjago.javastone.model.QuantizedLinearLayer;
+import io.github.manjago.javastone.model.RMSNorm;
+import io.github.manjago.javastone.model.RotaryEmbedding;
+import io.github.manjago.javastone.model.TransformerBlock;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ModelLoader {
 
+    /**
+     * Сборка одного блока по его номеру.
+     */
+    @FunctionalInterface
+    interface BlockLoader {
+        TransformerBlock load(int index) throws IOException;
+    }
+
+    public static GemmaConfig loadConfig(Path modelPath) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.readValue(modelPath.resolve("config.json").toFile(), GemmaConfig.class);
+    }
+
+    /**
+     * Токенизатор модели: tokenizer.model из той же папки, что и веса.
+     */
+    public static GemmaTokenizer loadTokenizer(Path modelPath) throws IOException {
+        return GemmaTokenizer.load(modelPath);
+    }
+
+    /**
+     * Собирает GemmaModel из config.json и шардов .safetensors с весами в FLOAT32.
+     * Если в папке лежит снимок {@link ModelSnapshot} поддерживаемого формата, модель собирается
+     * из него с тем типом весов, в котором снимок записан.
+     * @see #loadModel(Path, NDManager, DataType)
+     */
+    public static GemmaModel loadModel(Path modelPath, NDManager manager) throws IOException {
+        if (ModelSnapshot.weightType(modelPath) != null) {
+            return ModelSnapshot.load(modelPath, manager);
+        }
+        return loadModel(modelPath, manager, DataType.FLOAT32);
+    }
+
+    /**
+     * Собирает GemmaModel из config.json и шардов .safetensors.
+     * Матрицы весов хранятся в weightType: тензоры этого типа отображаются в память без
+     * копирования, остальные приводятся к нему (копия в нативной памяти, не в куче).
+     * Чекпоинт Gemma в bf16 с weightType = BFLOAT16 загружается вообще без копий и занимает
+     * вдвое меньше памяти, чем в FLOAT32; вычисления при этом все равно идут в FLOAT32.
+     * Нормализации и смещения всегда в FLOAT32: они малы, а точность им важнее.
+     * Открытые файлы закрываются сразу: отображенные регионы остаются валидными.
+     * Чекпоинты, подготовленные {@link ModelQuantizer}, загружаются как QuantizedLinearLayer.
+     * Блоки собираются параллельно (см. {@link #loadBlocks}).
+     * Если в папке лежит снимок {@link ModelSnapshot} с тем же типом весов, модель собирается
+     * из него; снимок другого типа игнорируется.
+     * @param manager Менеджер, которому будут принадлежать веса модели.
+     * @param weightType FLOAT32, BFLOAT16 или FLOAT16.
+     */
+    public static GemmaModel loadModel(Path modelPath, NDManager manager, DataType weightType) throws IOException {
+        checkWeightType(weightType);
+        // Снимок с другим типом весов или в другом формате не подходит: модель собирается из самого чекпоинта
+        if (ModelSnapshot.weightType(modelPath) == weightType) {
+            return ModelSnapshot.load(modelPath, manager);
+        }
+        GemmaConfig config = loadConfig(modelPath);
+        try (SafetensorsCheckpoint checkpoint = SafetensorsCheckpoint.open(modelPath)) {
+            EmbeddingLayer embedding = new EmbeddingLayer(
+                    load(checkpoint, manager, "model.embed_tokens.weight", weightType));
+
+            // Таблицы RoPE считаются один раз и общие для всех слоев
+            RotaryEmbedding rope = new RotaryEmbedding(manager, config.headDim(), config.maxPositionEmbeddings(),
+                    config.ropeTheta());
+            List<TransformerBlock> blocks = loadBlocks(config.numHiddenLayers(),
+                    i -> loadBlock(checkpoint, manager, config, rope, "model.layers." + i + ".", weightType));
+
+            RMSNorm finalNorm = loadNorm(checkpoint, manager, config, "model.norm.weight");
+            if (checkpoint.contains("lm_head.weight") || checkpoint.contains("lm_head" + ModelQuantizer.QWEIGHT_SUFFIX)) {
+                return new GemmaModel(embedding, blocks, finalNorm, loadLinear(checkpoint, manager, "lm_head", weightType));
+            }
+            // У Gemma нет отдельного lm_head: выходной слой использует матрицу эмбеддингов
+            return new GemmaModel(embedding, blocks, finalNorm);
+        }
+    }
+
+    static void checkWeightType(DataType weightType) {
+        if (weightType != DataType.FLOAT32 && weightType != DataType.BFLOAT16 && weightType != DataType.FLOAT16) {
+            throw new IllegalArgumentException("Unsupported weight type: " + weightType);
+        }
+    }
+
+    /**
+     * Собирает блоки параллельно, по виртуальному потоку на блок: отображение тензоров,
+     * приведение типов и склейка проекций разных блоков независимы, а основное время
+     * уходит на ожидание чтения файла и нативные вызовы.
+     * @return Блоки в порядке номеров.
+     */
+    static List<TransformerBlock> loadBlocks(int count, BlockLoader loader) throws IOException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<TransformerBlock>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> loader.load(index)));
+            }
+            List<TransformerBlock> blocks = new ArrayList<>(count);
+            for (Future<TransformerBlock> future : futures) {
+                blocks.add(await(future));
+            }
+            return blocks;
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading model");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static TransformerBlock loadBlock(SafetensorsCheckpoint checkpoint, NDManager manager,
+                                              GemmaConfig config, RotaryEmbedding rope, String prefix,
+                                              DataType weightType)
+            throws IOException {
+        // У Gemma-2B одна голова K/V на все головы запроса (MQA): k_proj и v_proj узкие.
+        // Проекции с общим входом объединяются: q/k/v и gate/up считаются одним умножением матриц
+        MultiHeadAttention attention = new MultiHeadAttention(config.numAttentionHeads(),
+                config.numKeyValueHeads(), config.headDim(), rope,
+                loadLinear(checkpoint, manager, weightType,
+                        prefix + "self_attn.q_proj", prefix + "self_attn.k_proj", prefix + "self_attn.v_proj"),
+                loadLinear(checkpoint, manager, prefix + "self_attn.o_proj", weightType));
+        RMSNorm norm1 = loadNorm(checkpoint, manager, config, prefix + "input_layernorm.weight");
+        RMSNorm norm2 = loadNorm(checkpoint, manager, config, prefix + "post_attention_layernorm.weight");
+        GatedFeedForward mlp = new GatedFeedForward(
+                loadLinear(checkpoint, manager, weightType, prefix + "mlp.gate_proj", prefix + "mlp.up_proj"),
+                loadLinear(checkpoint, manager, prefix + "mlp.down_proj", weightType));
+        return new TransformerBlock(attention, norm1, norm2, mlp);
+    }
+
+    private static LinearLayer loadLinear(SafetensorsCheckpoint checkpoint, NDManager manager, String prefix,
+                                          DataType weightType) throws IOException {
+        return loadLinear(checkpoint, manager, weightType, prefix);
+    }
+
+    /**
+     * Загружает слой, склеивая по выходным признакам веса нескольких слоев с общим входом.
+     * Один слой отображается без копирования; объединенные веса — копия в нативной памяти,
+     * а отображения исходных тензоров сразу освобождаются.
+     */
+    private static LinearLayer loadLinear(SafetensorsCheckpoint checkpoint, NDManager manager, DataType weightType,
+                                          String... prefixes) throws IOException {
+        NDArray bias = loadRows(checkpoint, manager, prefixes, ".bias", DataType.FLOAT32);
+        if (checkpoint.contains(prefixes[0] + ModelQuantizer.QWEIGHT_SUFFIX)) {
+            // Квантованные веса отображаются как есть, без приведения типа; строки квантуются независимо,
+            // поэтому qweight и scales склеиваются так же, как обычные веса
+            NDArray qweight = loadRows(checkpoint, manager, prefixes, ModelQuantizer.QWEIGHT_SUFFIX, null);
+            NDArray scales = loadRows(checkpoint, manager, prefixes, ModelQuantizer.SCALES_SUFFIX, DataType.FLOAT32);
+            int bits = qweight.getDataType() == DataType.INT8 ? 8 : 4;
+            return new QuantizedLinearLayer(qweight, scales, bias, bits);
+        }
+        NDArray weight = loadRows(checkpoint, manager, prefixes, ".weight", weightType);
+        return new LinearLayer(weight, bias);
+    }
+
+    /**
+     * Тензоры prefix + suffix всех слоев, склеенные по первой оси.
+     * @param type Тип результата; null — как в чекпоинте.
+     * @return null, если ни у одного слоя нет такого тензора.
+     */
+    static NDArray loadRows(SafetensorsCheckpoint checkpoint, NDManager manager, String[] prefixes,
+                            String suffix, DataType type) throws IOException {
+        int present = 0;
+        for (String prefix : prefixes) {
+            present += checkpoint.contains(prefix + suffix) ? 1 : 0;
+        }
+        if (present == 0) {
+            return null;
+        }
+        if (present != prefixes.length) {
+            throw new IOException("Tensor " + suffix + " is present only for some of " + String.join(", ", prefixes));
+        }
+        NDList parts = new NDList();
+        for (String prefix : prefixes) {
+            parts.add(type == null ? checkpoint.load(manager, prefix + suffix)
+                    : load(checkpoint, manager, prefix + suffix, type));
+        }
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        NDArray merged = NDArrays.concat(parts, 0);
+        parts.close();
+        return merged;
+    }
+
+    private static RMSNorm loadNorm(SafetensorsCheckpoint checkpoint, NDManager manager,
+                                    GemmaConfig config, String name) throws IOException {
+        return new RMSNorm(load(checkpoint, manager, name), config.rmsNormEps());
+    }
+
+    private static NDArray load(SafetensorsCheckpoint checkpoint, NDManager manager, String name) throws IOException {
+        return load(checkpoint, manager, name, DataType.FLOAT32);
+    }
+
+    static NDArray load(SafetensorsCheckpoint checkpoint, NDManager manager, String name, DataType type)
+            throws IOException {
+        NDArray array = checkpoint.load(manager, name);
+        if (array.getDataType() == type) {
+            return array;
+        }
+        NDArray converted = array.toType(type, false);
+        array.close();
+        return converted;
+    }
+
     public static void main(String[] args) throws IOException {
         // Укажи путь к папке с твоей моделью
         Path modelPath = Paths.get(System.getProperty("user.home"), "models", "gemma-2b");
         System.out.println("Loading model from: " + modelPath);
-        
+
         // --- 1. "Пощупаем" загрузку конфига ---
         System.out.println("\n--- Loading Config ---");
-        
-        ObjectMapper mapper = new ObjectMapper();
-        GemmaConfig config = mapper.readValue(modelPath.resolve("config.json").toFile(), GemmaConfig.class);
+
+        GemmaConfig config = loadConfig(modelPath);
 
         System.out.println("Config loaded successfully!");
         System.out.println("Hidden Size: " + config.hiddenSize());
         System.out.println("Num Layers: " + config.numHiddenLayers());
         System.out.println("Num Heads: " + config.numAttentionHeads());
+        System.out.println("Num KV Heads: " + config.numKeyValueHeads());
+        System.out.println("RoPE theta: " + config.ropeTheta() + ", max positions: " + config.maxPositionEmbeddings());
+
+        // --- 2. Отображаем веса в память и собираем модель ---
+        System.out.println("\n--- Loading Weights ---");
+        try (NDManager manager = NDManager.newBaseManager()) {
+            long start = System.nanoTime();
+            GemmaModel model = loadModel(modelPath, manager, DataType.BFLOAT16);
+            System.out.printf("Model assembled in %d ms (bf16 weights)%n", (System.nanoTime() - start) / 1_000_000);
+        }
     }
-}
\ No newline at end of file
+}
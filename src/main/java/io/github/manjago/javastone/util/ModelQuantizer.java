@@ -0,0 +1,110 @@
+package io.github.manjago.javastone.util;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.model.QuantizedLinearLayer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Офлайн-квантование чекпоинта: веса всех проекций (*_proj) и LM head
+ * переводятся в int8/int4 с масштабом на группу и сохраняются в новый .safetensors.
+ * Полученную папку ModelLoader.loadModel загружает как QuantizedLinearLayer.
+ * <p>
+ * Для каждого квантованного тензора NAME.weight в файл пишутся NAME.qweight и NAME.scales.
+ * Если у модели LM head привязан к эмбеддингам, он квантуется отдельно как lm_head.
+ */
+public class ModelQuantizer {
+
+    public static final String QWEIGHT_SUFFIX = ".qweight";
+    public static final String SCALES_SUFFIX = ".scales";
+    public static final String OUTPUT_FILE = "model.safetensors";
+
+    private static final String EMBEDDING = "model.embed_tokens.weight";
+    private static final String LM_HEAD = "lm_head";
+
+    private record Task(String source, String target, boolean quantized) {}
+
+    public static void quantize(Path sourceDir, Path targetDir, int bits, int groupSize) throws IOException {
+        Files.createDirectories(targetDir);
+        try (NDManager manager = NDManager.newBaseManager();
+             SafetensorsCheckpoint checkpoint = SafetensorsCheckpoint.open(sourceDir)) {
+            List<Task> tasks = new ArrayList<>();
+            for (String name : new TreeSet<>(checkpoint.names())) {
+                boolean quantized = isQuantizable(name, checkpoint.info(name).shape());
+                tasks.add(new Task(name, quantized ? name.substring(0, name.length() - ".weight".length()) : name, quantized));
+            }
+            if (!checkpoint.contains(LM_HEAD + ".weight")) {
+                tasks.add(new Task(EMBEDDING, LM_HEAD, true));
+            }
+
+            List<SafetensorsWriter.Entry> entries = new ArrayList<>();
+            for (Task task : tasks) {
+                SafetensorsFile.TensorInfo info = checkpoint.info(task.source());
+                if (task.quantized()) {
+                    long rows = info.shape().get(0);
+                    long cols = info.shape().get(1);
+                    entries.add(new SafetensorsWriter.Entry(task.target() + QWEIGHT_SUFFIX,
+                            bits == 8 ? DataType.INT8 : DataType.UINT8,
+                            new Shape(rows, bits == 8 ? cols : cols / 2)));
+                    entries.add(new SafetensorsWriter.Entry(task.target() + SCALES_SUFFIX,
+                            DataType.FLOAT32, new Shape(rows, cols / groupSize)));
+                } else {
+                    entries.add(new SafetensorsWriter.Entry(task.target(), info.dataType(), info.shape()));
+                }
+            }
+
+            Map<String, String> metadata = Map.of(
+                    "quantization", "int" + bits,
+                    "group_size", String.valueOf(groupSize));
+            try (SafetensorsWriter writer = new SafetensorsWriter(targetDir.resolve(OUTPUT_FILE), entries, metadata)) {
+                for (Task task : tasks) {
+                    // Каждый тензор обрабатывается в своем под-менеджере, чтобы не копить память
+                    try (NDManager scope = manager.newSubManager()) {
+                        NDArray weight = checkpoint.load(scope, task.source());
+                        if (task.quantized()) {
+                            NDList packed = QuantizedLinearLayer.quantizeWeight(weight, bits, groupSize);
+                            writer.write(task.target() + QWEIGHT_SUFFIX, packed.get(0));
+                            writer.write(task.target() + SCALES_SUFFIX, packed.get(1));
+                        } else {
+                            writer.write(task.target(), weight);
+                        }
+                    }
+                }
+            }
+        }
+        for (String file : new String[]{"config.json", GemmaTokenizer.MODEL_FILE}) {
+            Path source = sourceDir.resolve(file);
+            if (Files.exists(source)) {
+                Files.copy(source, targetDir.resolve(file), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static boolean isQuantizable(String name, Shape shape) {
+        return shape.dimension() == 2
+                && (name.endsWith("_proj.weight") || name.equals(LM_HEAD + ".weight"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path modelPath = Paths.get(System.getProperty("user.home"), "models", "gemma-2b");
+        int bits = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int groupSize = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        Path targetPath = modelPath.resolveSibling(modelPath.getFileName() + "-int" + bits);
+
+        System.out.println("Quantizing " + modelPath + " -> " + targetPath);
+        long start = System.nanoTime();
+        quantize(modelPath, targetPath, bits, groupSize);
+        System.out.printf("Done in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+    }
+}
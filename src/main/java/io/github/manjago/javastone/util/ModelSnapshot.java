@@ -0,0 +1,299 @@
+package io.github.manjago.javastone.util;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import io.github.manjago.javastone.model.EmbeddingLayer;
+import io.github.manjago.javastone.model.GatedFeedForward;
+import io.github.manjago.javastone.model.GemmaModel;
+import io.github.manjago.javastone.model.LinearLayer;
+import io.github.manjago.javastone.model.MultiHeadAttention;
+import io.github.manjago.javastone.model.QuantizedLinearLayer;
+import io.github.manjago.javastone.model.RMSNorm;
+import io.github.manjago.javastone.model.RotaryEmbedding;
+import io.github.manjago.javastone.model.TransformerBlock;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Снимок модели для быстрого старта: один файл .safetensors с весами уже в той раскладке,
+ * в которой их использует модель. При записи один раз выполняется все, что обычная загрузка
+ * делает на каждом старте: приведение к типу весов, склейка q/k/v и gate/up и транспонирование
+ * весов линейных слоев в (input_features, output_features) непрерывной копией.
+ * Загрузка снимка — только отображение регионов файла (zero-copy), поэтому старт упирается
+ * в чтение диска, а страницы разделяются через page cache между процессами на хосте.
+ * <p>
+ * Заголовок safetensors служит индексом (имя, тип, форма, смещение); в __metadata__ записаны
+ * формат, версия и тип весов. Имена тензоров:
+ * <ul>
+ *   <li>NAME.weight_t — транспонированные веса линейного слоя, NAME.bias — смещение;</li>
+ *   <li>NAME.qweight и NAME.scales — квантованный слой (см. {@link ModelQuantizer}), как есть;</li>
+ *   <li>эмбеддинги и нормализации — под исходными именами чекпоинта.</li>
+ * </ul>
+ * Рядом лежат config.json и tokenizer.model.
+ */
+public class ModelSnapshot {
+
+    public static final String SNAPSHOT_FILE = "model.snapshot.safetensors";
+    public static final String FORMAT = "javastone-snapshot";
+    public static final int VERSION = 1;
+
+    static final String TRANSPOSED_SUFFIX = ".weight_t";
+
+    private static final String EMBEDDING = "model.embed_tokens.weight";
+    private static final String FINAL_NORM = "model.norm.weight";
+    private static final String LM_HEAD = "lm_head";
+
+    private enum Kind { EMBEDDING, NORM, LINEAR }
+
+    /**
+     * Тензоры снимка, получаемые из одного или нескольких тензоров чекпоинта.
+     * @param target Имя тензора (или префикс слоя) в снимке.
+     * @param sources Имена (или префиксы слоев) в чекпоинте; у LINEAR склеиваются по выходным признакам.
+     */
+    private record Task(Kind kind, String target, String... sources) {}
+
+    private ModelSnapshot() {
+    }
+
+    public static boolean exists(Path modelDir) {
+        return Files.exists(modelDir.resolve(SNAPSHOT_FILE));
+    }
+
+    /**
+     * Тип, в котором снимок хранит веса.
+     * @return null, если снимка нет или он в неподдерживаемом формате (другая версия,
+     *         нет или неизвестен weight_dtype): такой снимок загрузчик пропускает.
+     */
+    public static DataType weightType(Path snapshotDir) throws IOException {
+        if (!exists(snapshotDir)) {
+            return null;
+        }
+        try (SafetensorsFile file = SafetensorsFile.open(snapshotDir.resolve(SNAPSHOT_FILE))) {
+            return readFormat(file);
+        }
+    }
+
+    /**
+     * Записывает снимок чекпоинта sourceDir (в том числе квантованного) в папку targetDir.
+     * Тензоры обрабатываются по одному, память не копится.
+     * @param weightType Тип весов снимка: FLOAT32, BFLOAT16 или FLOAT16.
+     */
+    public static void write(Path sourceDir, Path targetDir, DataType weightType) throws IOException {
+        ModelLoader.checkWeightType(weightType);
+        GemmaConfig config = ModelLoader.loadConfig(sourceDir);
+        Files.createDirectories(targetDir);
+        try (NDManager manager = NDManager.newBaseManager();
+             SafetensorsCheckpoint checkpoint = SafetensorsCheckpoint.open(sourceDir)) {
+            List<Task> tasks = tasks(checkpoint, config);
+            List<SafetensorsWriter.Entry> entries = new ArrayList<>();
+            for (Task task : tasks) {
+                entries.addAll(entries(checkpoint, task, weightType));
+            }
+
+            Map<String, String> metadata = Map.of(
+                    "format", FORMAT,
+                    "version", String.valueOf(VERSION),
+                    "weight_dtype", weightType.name());
+            try (SafetensorsWriter writer = new SafetensorsWriter(targetDir.resolve(SNAPSHOT_FILE), entries, metadata)) {
+                for (Task task : tasks) {
+                    // Каждая группа обрабатывается в своем под-менеджере, чтобы не копить память
+                    try (NDManager scope = manager.newSubManager()) {
+                        writeTask(checkpoint, scope, writer, task, weightType);
+                    }
+                }
+            }
+        }
+        for (String file : new String[]{"config.json", GemmaTokenizer.MODEL_FILE}) {
+            Path source = sourceDir.resolve(file);
+            if (Files.exists(source)) {
+                Files.copy(source, targetDir.resolve(file), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static List<Task> tasks(SafetensorsCheckpoint checkpoint, GemmaConfig config) {
+        List<Task> tasks = new ArrayList<>();
+        tasks.add(new Task(Kind.EMBEDDING, EMBEDDING, EMBEDDING));
+        for (int i = 0; i < config.numHiddenLayers(); i++) {
+            String prefix = "model.layers." + i + ".";
+            tasks.add(new Task(Kind.LINEAR, prefix + "self_attn.qkv_proj",
+                    prefix + "self_attn.q_proj", prefix + "self_attn.k_proj", prefix + "self_attn.v_proj"));
+            tasks.add(new Task(Kind.LINEAR, prefix + "self_attn.o_proj", prefix + "self_attn.o_proj"));
+            tasks.add(new Task(Kind.NORM, prefix + "input_layernorm.weight", prefix + "input_layernorm.weight"));
+            tasks.add(new Task(Kind.NORM, prefix + "post_attention_layernorm.weight",
+                    prefix + "post_attention_layernorm.weight"));
+            tasks.add(new Task(Kind.LINEAR, prefix + "mlp.gate_up_proj", prefix + "mlp.gate_proj", prefix + "mlp.up_proj"));
+            tasks.add(new Task(Kind.LINEAR, prefix + "mlp.down_proj", prefix + "mlp.down_proj"));
+        }
+        tasks.add(new Task(Kind.NORM, FINAL_NORM, FINAL_NORM));
+        if (checkpoint.contains(LM_HEAD + ".weight") || checkpoint.contains(LM_HEAD + ModelQuantizer.QWEIGHT_SUFFIX)) {
+            tasks.add(new Task(Kind.LINEAR, LM_HEAD, LM_HEAD));
+        }
+        return tasks;
+    }
+
+    private static List<SafetensorsWriter.Entry> entries(SafetensorsCheckpoint checkpoint, Task task,
+                                                        DataType weightType) {
+        List<SafetensorsWriter.Entry> entries = new ArrayList<>();
+        switch (task.kind()) {
+            case EMBEDDING -> entries.add(new SafetensorsWriter.Entry(task.target(), weightType,
+                    checkpoint.info(task.sources()[0]).shape()));
+            case NORM -> entries.add(new SafetensorsWriter.Entry(task.target(), DataType.FLOAT32,
+                    checkpoint.info(task.sources()[0]).shape()));
+            case LINEAR -> {
+                boolean quantized = checkpoint.contains(task.sources()[0] + ModelQuantizer.QWEIGHT_SUFFIX);
+                String weightSuffix = quantized ? ModelQuantizer.QWEIGHT_SUFFIX : ".weight";
+                Shape first = checkpoint.info(task.sources()[0] + weightSuffix).shape();
+                long rows = 0;
+                for (String source : task.sources()) {
+                    rows += checkpoint.info(source + weightSuffix).shape().get(0);
+                }
+                if (quantized) {
+                    long groups = checkpoint.info(task.sources()[0] + ModelQuantizer.SCALES_SUFFIX).shape().get(1);
+                    entries.add(new SafetensorsWriter.Entry(task.target() + ModelQuantizer.QWEIGHT_SUFFIX,
+                            checkpoint.info(task.sources()[0] + weightSuffix).dataType(), new Shape(rows, first.get(1))));
+                    entries.add(new SafetensorsWriter.Entry(task.target() + ModelQuantizer.SCALES_SUFFIX,
+                            DataType.FLOAT32, new Shape(rows, groups)));
+                } else {
+                    entries.add(new SafetensorsWriter.Entry(task.target() + TRANSPOSED_SUFFIX, weightType,
+                            new Shape(first.get(1), rows)));
+                }
+                if (checkpoint.contains(task.sources()[0] + ".bias")) {
+                    entries.add(new SafetensorsWriter.Entry(task.target() + ".bias", DataType.FLOAT32, new Shape(rows)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void writeTask(SafetensorsCheckpoint checkpoint, NDManager scope, SafetensorsWriter writer,
+                                  Task task, DataType weightType) throws IOException {
+        switch (task.kind()) {
+            case EMBEDDING -> writer.write(task.target(),
+                    ModelLoader.load(checkpoint, scope, task.sources()[0], weightType));
+            case NORM -> writer.write(task.target(),
+                    ModelLoader.load(checkpoint, scope, task.sources()[0], DataType.FLOAT32));
+            case LINEAR -> {
+                String[] sources = task.sources();
+                if (checkpoint.contains(sources[0] + ModelQuantizer.QWEIGHT_SUFFIX)) {
+                    writer.write(task.target() + ModelQuantizer.QWEIGHT_SUFFIX,
+                            ModelLoader.loadRows(checkpoint, scope, sources, ModelQuantizer.QWEIGHT_SUFFIX, null));
+                    writer.write(task.target() + ModelQuantizer.SCALES_SUFFIX,
+                            ModelLoader.loadRows(checkpoint, scope, sources, ModelQuantizer.SCALES_SUFFIX, DataType.FLOAT32));
+                } else {
+                    NDArray weight = ModelLoader.loadRows(checkpoint, scope, sources, ".weight", weightType);
+                    // flatten делает непрерывную копию транспонированного view
+                    Shape shape = weight.getShape();
+                    NDArray weightT = weight.transpose().flatten().reshape(shape.get(1), shape.get(0));
+                    writer.write(task.target() + TRANSPOSED_SUFFIX, weightT);
+                }
+                NDArray bias = ModelLoader.loadRows(checkpoint, scope, sources, ".bias", DataType.FLOAT32);
+                if (bias != null) {
+                    writer.write(task.target() + ".bias", bias);
+                }
+            }
+        }
+    }
+
+    /**
+     * Собирает модель из снимка: все тензоры отображаются без копирования,
+     * блоки материализуются параллельно на виртуальных потоках.
+     * @param manager Менеджер, которому будут принадлежать веса модели.
+     */
+    public static GemmaModel load(Path snapshotDir, NDManager manager) throws IOException {
+        GemmaConfig config = ModelLoader.loadConfig(snapshotDir);
+        try (SafetensorsFile file = SafetensorsFile.open(snapshotDir.resolve(SNAPSHOT_FILE))) {
+            checkFormat(file);
+            EmbeddingLayer embedding = new EmbeddingLayer(file.load(manager, EMBEDDING));
+            RotaryEmbedding rope = new RotaryEmbedding(manager, config.headDim(), config.maxPositionEmbeddings(),
+                    config.ropeTheta());
+            List<TransformerBlock> blocks = ModelLoader.loadBlocks(config.numHiddenLayers(),
+                    i -> loadBlock(file, manager, config, rope, "model.layers." + i + "."));
+            RMSNorm finalNorm = new RMSNorm(file.load(manager, FINAL_NORM), config.rmsNormEps());
+            if (file.contains(LM_HEAD + TRANSPOSED_SUFFIX) || file.contains(LM_HEAD + ModelQuantizer.QWEIGHT_SUFFIX)) {
+                return new GemmaModel(embedding, blocks, finalNorm, loadLinear(file, manager, LM_HEAD));
+            }
+            return new GemmaModel(embedding, blocks, finalNorm);
+        }
+    }
+
+    private static DataType checkFormat(SafetensorsFile file) throws IOException {
+        DataType weightType = readFormat(file);
+        if (weightType == null) {
+            Map<String, String> metadata = file.metadata();
+            throw new IOException("Unsupported snapshot " + file.path() + ": format " + metadata.get("format")
+                    + ", version " + metadata.get("version") + ", weight_dtype " + metadata.get("weight_dtype"));
+        }
+        return weightType;
+    }
+
+    /**
+     * Тип весов из метаданных снимка или null, если формат не поддерживается.
+     */
+    private static DataType readFormat(SafetensorsFile file) {
+        Map<String, String> metadata = file.metadata();
+        if (!FORMAT.equals(metadata.get("format")) || !String.valueOf(VERSION).equals(metadata.get("version"))) {
+            return null;
+        }
+        String weightType = metadata.get("weight_dtype");
+        for (DataType type : new DataType[]{DataType.FLOAT32, DataType.BFLOAT16, DataType.FLOAT16}) {
+            if (type.name().equals(weightType)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    private static TransformerBlock loadBlock(SafetensorsFile file, NDManager manager, GemmaConfig config,
+                                              RotaryEmbedding rope, String prefix) throws IOException {
+        MultiHeadAttention attention = new MultiHeadAttention(config.numAttentionHeads(),
+                config.numKeyValueHeads(), config.headDim(), rope,
+                loadLinear(file, manager, prefix + "self_attn.qkv_proj"),
+                loadLinear(file, manager, prefix + "self_attn.o_proj"));
+        RMSNorm norm1 = new RMSNorm(file.load(manager, prefix + "input_layernorm.weight"), config.rmsNormEps());
+        RMSNorm norm2 = new RMSNorm(file.load(manager, prefix + "post_attention_layernorm.weight"), config.rmsNormEps());
+        GatedFeedForward mlp = new GatedFeedForward(loadLinear(file, manager, prefix + "mlp.gate_up_proj"),
+                loadLinear(file, manager, prefix + "mlp.down_proj"));
+        return new TransformerBlock(attention, norm1, norm2, mlp);
+    }
+
+    private static LinearLayer loadLinear(SafetensorsFile file, NDManager manager, String prefix) throws IOException {
+        NDArray bias = file.contains(prefix + ".bias") ? file.load(manager, prefix + ".bias") : null;
+        if (file.contains(prefix + ModelQuantizer.QWEIGHT_SUFFIX)) {
+            NDArray qweight = file.load(manager, prefix + ModelQuantizer.QWEIGHT_SUFFIX);
+            NDArray scales = file.load(manager, prefix + ModelQuantizer.SCALES_SUFFIX);
+            int bits = qweight.getDataType() == DataType.INT8 ? 8 : 4;
+            return new QuantizedLinearLayer(qweight, scales, bias, bits);
+        }
+        return LinearLayer.fromTransposed(file.load(manager, prefix + TRANSPOSED_SUFFIX), bias);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path modelPath = Paths.get(System.getProperty("user.home"), "models", "gemma-2b");
+        Path snapshotPath = modelPath.resolveSibling(modelPath.getFileName() + "-snapshot");
+
+        System.out.println("Writing snapshot " + modelPath + " -> " + snapshotPath);
+        long start = System.nanoTime();
+        write(modelPath, snapshotPath, DataType.BFLOAT16);
+        System.out.printf("Done in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+        try (NDManager manager = NDManager.newBaseManager()) {
+            start = System.nanoTime();
+            ModelLoader.loadModel(modelPath, manager, DataType.BFLOAT16);
+            System.out.printf("Checkpoint load: %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        }
+        try (NDManager manager = NDManager.newBaseManager()) {
+            start = System.nanoTime();
+            ModelLoader.loadModel(snapshotPath, manager);
+            System.out.printf("Snapshot load: %d ms%n", (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.github.manjago.javastone.util;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Чекпоинт из одного или нескольких шардов .safetensors.
+ * Если рядом лежит model.safetensors.index.json, распределение тензоров по шардам
+ * берется из него, иначе открываются все *.safetensors файлы в папке,
+ * кроме снимка {@link ModelSnapshot#SNAPSHOT_FILE}.
+ */
+public class SafetensorsCheckpoint implements AutoCloseable {
+
+    public static final String INDEX_FILE = "model.safetensors.index.json";
+
+    private final List<SafetensorsFile> shards;
+    private final Map<String, SafetensorsFile> byTensor;
+
+    private SafetensorsCheckpoint(List<SafetensorsFile> shards, Map<String, SafetensorsFile> byTensor) {
+        this.shards = shards;
+        this.byTensor = byTensor;
+    }
+
+    public static SafetensorsCheckpoint open(Path modelDir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path index = modelDir.resolve(INDEX_FILE);
+        if (Files.exists(index)) {
+            JsonNode weightMap = new ObjectMapper().readTree(index.toFile()).get("weight_map");
+            weightMap.fields().forEachRemaining(e -> {
+                Path shard = modelDir.resolve(e.getValue().asText());
+                if (!files.contains(shard)) {
+                    files.add(shard);
+                }
+            });
+        } else {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(modelDir, "*.safetensors")) {
+                // Снимок, записанный рядом с чекпоинтом, не шард: его тензоры уже в другой раскладке
+                stream.forEach(file -> {
+                    if (!file.getFileName().toString().equals(ModelSnapshot.SNAPSHOT_FILE)) {
+                        files.add(file);
+                    }
+                });
+            }
+            Collections.sort(files);
+        }
+        if (files.isEmpty()) {
+            throw new IOException("No .safetensors files found in " + modelDir);
+        }
+
+        List<SafetensorsFile> shards = new ArrayList<>();
+        Map<String, SafetensorsFile> byTensor = new HashMap<>();
+        try {
+            for (Path file : files) {
+                SafetensorsFile shard = SafetensorsFile.open(file);
+                shards.add(shard);
+                for (String name : shard.names()) {
+                    byTensor.put(name, shard);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (SafetensorsFile shard : shards) {
+                shard.close();
+            }
+            throw e;
+        }
+        return new SafetensorsCheckpoint(shards, byTensor);
+    }
+
+    public Set<String> names() {
+        return Collections.unmodifiableSet(byTensor.keySet());
+    }
+
+    public boolean contains(String name) {
+        return byTensor.containsKey(name);
+    }
+
+    public SafetensorsFile.TensorInfo info(String name) {
+        return shardOf(name).info(name);
+    }
+
+    /**
+     * Метаданные (__metadata__) всех шардов, объединенные в одну карту.
+     */
+    public Map<String, String> metadata() {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        for (SafetensorsFile shard : shards) {
+            metadata.putAll(shard.metadata());
+        }
+        return metadata;
+    }
+
+    /**
+     * Загружает тензор без копирования (см. {@link SafetensorsFile#load}).
+     */
+    public NDArray load(NDManager manager, String name) throws IOException {
+        return shardOf(name).load(manager, name);
+    }
+
+    private SafetensorsFile shardOf(String name) {
+        SafetensorsFile shard = byTensor.get(name);
+        if (shard == null) {
+            throw new IllegalArgumentException("Tensor " + name + " not found in checkpoint");
+        }
+        return shard;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SafetensorsFile shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.github.manjago.javastone.util;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Один файл формата .safetensors, отображенный в память.
+ * Формат: 8 байт (u64 LE) длины заголовка, JSON-заголовок, затем сырые данные тензоров.
+ * Тензоры не копируются в кучу: каждый регион отображается через FileChannel.map
+ * и передается движку как direct-буфер, поэтому страницы файла разделяются
+ * через page cache между всеми JVM на хосте.
+ */
+public class SafetensorsFile implements AutoCloseable {
+
+    /**
+     * Описание тензора из заголовка.
+     * @param offset Смещение данных от начала файла.
+     * @param length Размер данных в байтах.
+     */
+    public record TensorInfo(String name, DataType dataType, Shape shape, long offset, long length) {}
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Map<String, TensorInfo> tensors;
+    private final Map<String, String> metadata;
+
+    private SafetensorsFile(Path path, FileChannel channel, Map<String, TensorInfo> tensors,
+                            Map<String, String> metadata) {
+        this.path = path;
+        this.channel = channel;
+        this.tensors = tensors;
+        this.metadata = metadata;
+    }
+
+    public static SafetensorsFile open(Path path) throws IOException {
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            throw new UnsupportedOperationException("Zero-copy safetensors loading requires a little-endian platform");
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, lengthBuffer, 0);
+            long headerLength = lengthBuffer.flip().getLong();
+            if (headerLength <= 0 || headerLength > Integer.MAX_VALUE || Long.BYTES + headerLength > channel.size()) {
+                throw new IOException("Invalid safetensors header length " + headerLength + " in " + path);
+            }
+
+            ByteBuffer headerBuffer = ByteBuffer.allocate((int) headerLength);
+            readFully(channel, headerBuffer, Long.BYTES);
+            JsonNode header = MAPPER.readTree(headerBuffer.array());
+
+            long dataStart = Long.BYTES + headerLength;
+            Map<String, TensorInfo> tensors = new LinkedHashMap<>();
+            Map<String, String> metadata = new LinkedHashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = header.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if ("__metadata__".equals(field.getKey())) {
+                    field.getValue().fields().forEachRemaining(e -> metadata.put(e.getKey(), e.getValue().asText()));
+                    continue;
+                }
+                tensors.put(field.getKey(), parseTensor(field.getKey(), field.getValue(), dataStart, channel.size()));
+            }
+            return new SafetensorsFile(path, channel, tensors, metadata);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static TensorInfo parseTensor(String name, JsonNode node, long dataStart, long fileSize) throws IOException {
+        DataType dataType = DataType.fromSafetensors(node.get("dtype").asText());
+        JsonNode shapeNode = node.get("shape");
+        long[] dims = new long[shapeNode.size()];
+        for (int i = 0; i < dims.length; i++) {
+            dims[i] = shapeNode.get(i).asLong();
+        }
+        JsonNode offsets = node.get("data_offsets");
+        long begin = offsets.get(0).asLong();
+        long end = offsets.get(1).asLong();
+        Shape shape = new Shape(dims);
+        if (end - begin != shape.size() * dataType.getNumOfBytes() || dataStart + end > fileSize) {
+            throw new IOException("Corrupted safetensors entry " + name);
+        }
+        return new TensorInfo(name, dataType, shape, dataStart + begin, end - begin);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public Set<String> names() {
+        return Collections.unmodifiableSet(tensors.keySet());
+    }
+
+    public boolean contains(String name) {
+        return tensors.containsKey(name);
+    }
+
+    public TensorInfo info(String name) {
+        TensorInfo info = tensors.get(name);
+        if (info == null) {
+            throw new IllegalArgumentException("Tensor " + name + " not found in " + path);
+        }
+        return info;
+    }
+
+    public Map<String, String> metadata() {
+        return Collections.unmodifiableMap(metadata);
+    }
+
+    /**
+     * Отображает регион тензора в память без копирования.
+     * Буфер остается валидным и после закрытия файла.
+     */
+    public MappedByteBuffer map(String name) throws IOException {
+        TensorInfo info = info(name);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, info.offset(), info.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Создает NDArray поверх отображенного региона файла (zero-copy).
+     * Такой тензор только для чтения: in-place операции над ним недопустимы.
+     */
+    public NDArray load(NDManager manager, String name) throws IOException {
+        TensorInfo info = info(name);
+        return manager.create(map(name), info.shape(), info.dataType());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
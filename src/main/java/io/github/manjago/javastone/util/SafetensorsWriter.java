@@ -0,0 +1,136 @@
+package io.github.manjago.javastone.util;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Потоковая запись файла .safetensors.
+ * Заголовок пишется сразу по заранее известному списку тензоров, после чего данные
+ * передаются по одному тензору в том же порядке. Так большие чекпоинты можно писать,
+ * не держа все тензоры в памяти одновременно.
+ */
+public class SafetensorsWriter implements AutoCloseable {
+
+    /**
+     * Описание тензора, который будет записан.
+     */
+    public record Entry(String name, DataType dataType, Shape shape) {
+        long byteSize() {
+            return shape.size() * dataType.getNumOfBytes();
+        }
+    }
+
+    /** Смещение данных выравнивается по 8 байтам, как в эталонной реализации. */
+    private static final int ALIGNMENT = 8;
+
+    private final FileChannel channel;
+    private final List<Entry> entries;
+    private int next;
+
+    public SafetensorsWriter(Path file, List<Entry> entries, Map<String, String> metadata) throws IOException {
+        this.entries = List.copyOf(entries);
+        byte[] header = buildHeader(this.entries, metadata);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer prefix = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(header.length);
+        writeFully(prefix.flip());
+        writeFully(ByteBuffer.wrap(header));
+    }
+
+    private static byte[] buildHeader(List<Entry> entries, Map<String, String> metadata) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        if (metadata != null && !metadata.isEmpty()) {
+            ObjectNode meta = root.putObject("__metadata__");
+            metadata.forEach(meta::put);
+        }
+        long offset = 0;
+        for (Entry entry : entries) {
+            ObjectNode node = root.putObject(entry.name());
+            node.put("dtype", dtypeName(entry.dataType()));
+            ArrayNode shape = node.putArray("shape");
+            for (long dim : entry.shape().getShape()) {
+                shape.add(dim);
+            }
+            ArrayNode offsets = node.putArray("data_offsets");
+            offsets.add(offset);
+            offset += entry.byteSize();
+            offsets.add(offset);
+        }
+        // Выравнивание считается в байтах UTF-8: имена тензоров могут быть не ASCII
+        byte[] json = mapper.writeValueAsString(root).getBytes(StandardCharsets.UTF_8);
+        int padding = (ALIGNMENT - (Long.BYTES + json.length) % ALIGNMENT) % ALIGNMENT;
+        byte[] header = Arrays.copyOf(json, json.length + padding);
+        Arrays.fill(header, json.length, header.length, (byte) ' ');
+        return header;
+    }
+
+    static String dtypeName(DataType dataType) {
+        return switch (dataType) {
+            case FLOAT64 -> "F64";
+            case FLOAT32 -> "F32";
+            case FLOAT16 -> "F16";
+            case BFLOAT16 -> "BF16";
+            case INT64 -> "I64";
+            case INT32 -> "I32";
+            case INT16 -> "I16";
+            case INT8 -> "I8";
+            case UINT8 -> "U8";
+            case BOOLEAN -> "BOOL";
+            default -> throw new IllegalArgumentException("Unsupported safetensors dtype: " + dataType);
+        };
+    }
+
+    /**
+     * Записывает данные очередного тензора.
+     * @param name Имя должно совпадать со следующей записью списка entries.
+     */
+    public void write(String name, NDArray array) throws IOException {
+        if (next >= entries.size()) {
+            throw new IllegalStateException("All declared tensors are already written");
+        }
+        Entry entry = entries.get(next);
+        if (!entry.name().equals(name) || entry.dataType() != array.getDataType()
+                || !entry.shape().equals(array.getShape())) {
+            throw new IllegalArgumentException("Expected " + entry + ", got " + name + " "
+                    + array.getDataType() + " " + array.getShape());
+        }
+        ByteBuffer data = array.toByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() != entry.byteSize()) {
+            throw new IllegalStateException("Unexpected data size for " + name);
+        }
+        writeFully(data);
+        next++;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (next != entries.size()) {
+                throw new IllegalStateException("Only " + next + " of " + entries.size() + " tensors were written");
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.manjago.javastone.util;
+
+import java.util.Arrays;
+
+/**
+ * Инкрементальная детокенизация одной последовательности для потоковой выдачи текста.
+ * Декодировать каждый токен отдельно нельзя: SentencePiece убирает ведущий пробел у первого
+ * кусочка, а символ из нескольких байтов (byte fallback) может быть разбит между токенами.
+ * Поэтому декодируется короткое окно [prefixOffset, конец) и из него вычитается текст
+ * окна без новых токенов; незавершенный символ (U+FFFD в конце) придерживается до следующего токена.
+ * Стоимость шага не зависит от длины уже выданного текста.
+ */
+public class StreamingDetokenizer {
+
+    private static final char REPLACEMENT = '�';
+
+    private final GemmaTokenizer tokenizer;
+    private int[] ids = new int[32];
+    private int count;
+    private int prefixOffset;
+    private int readOffset;
+
+    StreamingDetokenizer(GemmaTokenizer tokenizer) {
+        this.tokenizer = tokenizer;
+    }
+
+    /**
+     * Добавляет сгенерированный токен.
+     * @return Новый фрагмент текста; пустая строка, если символ еще не завершен.
+     */
+    public String push(long id) {
+        if (id == tokenizer.bosId() || id == tokenizer.eosId() || id == tokenizer.padId()) {
+            return "";
+        }
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+        }
+        ids[count++] = (int) id;
+
+        String prefixText = tokenizer.decode(Arrays.copyOfRange(ids, prefixOffset, readOffset));
+        String newText = tokenizer.decode(Arrays.copyOfRange(ids, prefixOffset, count));
+        if (newText.length() > prefixText.length() && newText.charAt(newText.length() - 1) != REPLACEMENT) {
+            prefixOffset = readOffset;
+            readOffset = count;
+            return newText.substring(prefixText.length());
+        }
+        return "";
+    }
+
+    /**
+     * Остаток текста, придержанный в ожидании завершения символа (в конце генерации).
+     */
+    public String flush() {
+        String prefixText = tokenizer.decode(Arrays.copyOfRange(ids, prefixOffset, readOffset));
+        String newText = tokenizer.decode(Arrays.copyOfRange(ids, prefixOffset, count));
+        prefixOffset = count;
+        readOffset = count;
+        return newText.length() > prefixText.length() ? newText.substring(prefixText.length()) : "";
+    }
+}